@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang.StringUtils;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.rotation.AdapterTokenVerifier;
+import org.keycloak.common.VerificationException;
+import org.keycloak.representations.AccessToken;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import hudson.Util;
+import jenkins.util.SystemProperties;
+
+/**
+ * Authenticates requests carrying a keycloak access token in an
+ * <code>Authorization: Bearer</code> header. The token is verified locally
+ * against the realm keys and has to name the client of Jenkins as audience or
+ * authorized party. Verified tokens are cached by their SHA-256 hash
+ * until they expire, so repeated calls with the same token skip the signature
+ * check.
+ */
+final class BearerTokenAuthenticator {
+
+	private static final String BEARER = "Bearer ";
+
+	/**
+	 * Maximum number of verified tokens kept in the cache.
+	 */
+	static final int CACHE_SIZE = SystemProperties.getInteger(BearerTokenAuthenticator.class.getName() + ".cacheSize",
+			1000);
+
+	private static final Cache<String, KeycloakAuthentication> VERIFIED = CacheBuilder.newBuilder()
+			.maximumSize(CACHE_SIZE).build();
+
+	private BearerTokenAuthenticator() {
+	}
+
+	/**
+	 * @param request the request
+	 * @return the bearer token of the request, or null if it has none
+	 */
+	static String getBearerToken(HttpServletRequest request) {
+		String header = request.getHeader("Authorization");
+		if (header == null || !header.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+			return null;
+		}
+		return StringUtils.trimToNull(header.substring(BEARER.length()));
+	}
+
+	/**
+	 * Verifies a bearer token and builds the authentication of its user.
+	 *
+	 * @param deployment the keycloak deployment with the realm keys
+	 * @param tenant the tenant of the deployment, null for the keycloak JSON of
+	 *            the realm
+	 * @param tokenString the encoded access token
+	 * @return the authentication, shared by all requests with the same token
+	 * @throws VerificationException if the token is not valid, expired or
+	 *             issued for another client
+	 */
+	static KeycloakAuthentication authenticate(KeycloakDeployment deployment, String tenant, String tokenString)
+			throws VerificationException {
+		// a token is only valid for the tenant it was verified for
+		String key = hash(tokenString) + (tenant == null ? "" : "@" + tenant);
+		KeycloakAuthentication auth = VERIFIED.getIfPresent(key);
+		if (auth != null) {
+			if (!auth.isAccessExpired()) {
+				return auth;
+			}
+			VERIFIED.invalidate(key);
+		}
+		AccessToken token = AdapterTokenVerifier.verifyToken(tokenString, deployment);
+		if (token.getPreferredUsername() == null) {
+			throw new VerificationException("Access token has no preferred_username");
+		}
+		// a token of another client of the realm must not be replayed against Jenkins
+		String client = deployment.getResourceName();
+		if (!token.hasAudience(client) && !client.equals(token.getIssuedFor())) {
+			throw new VerificationException("Access token was not issued for " + client);
+		}
+		auth = new KeycloakAuthentication(token, deployment.getResourceName());
+		auth.setTenant(tenant);
+		VERIFIED.put(key, auth);
+		return auth;
+	}
+
+	/**
+	 * Drops all verified tokens, e.g. after the realm configuration changed.
+	 */
+	static void invalidateAll() {
+		VERIFIED.invalidateAll();
+	}
+
+	private static String hash(String tokenString) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Util.toHexString(digest.digest(tokenString.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
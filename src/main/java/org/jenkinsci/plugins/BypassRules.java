@@ -0,0 +1,168 @@
+package org.jenkinsci.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The paths the {@link RefreshFilter} lets through without looking at the
+ * session or the tokens: static resources, agent connections, webhooks and
+ * the login and logout endpoints. A rule is either a path prefix like
+ * <code>/static/</code> or a suffix starting with <code>*</code> like
+ * <code>*&#47;logout</code>. All prefixes and all suffixes are compiled into
+ * one trie each, so a path is checked in a single pass over its characters.
+ */
+final class BypassRules {
+
+	/**
+	 * The rules which always apply.
+	 */
+	static final List<String> DEFAULTS = List.of(
+			"*/logout",
+			"*/" + KeycloakSecurityRealm.JENKINS_FINISH_LOGIN_URL,
+			"/static/",
+			"/adjuncts/",
+			"/images/",
+			"/favicon.ico",
+			"/tcpSlaveAgentListener/",
+			"/wsagents/",
+			"/github-webhook/",
+			"/generic-webhook-trigger/");
+
+	private static final BypassRules DEFAULT_RULES = new BypassRules(DEFAULTS);
+
+	private final Node prefixes;
+	private final Node suffixes;
+
+	private BypassRules(List<String> rules) {
+		Builder prefixBuilder = new Builder();
+		Builder suffixBuilder = new Builder();
+		for (String rule : rules) {
+			if (rule.startsWith("*")) {
+				String suffix = rule.substring(1);
+				// a lone "*" would let everything through
+				if (!suffix.isEmpty()) {
+					suffixBuilder.add(StringUtils.reverse(suffix));
+				}
+			} else if (rule.startsWith("/")) {
+				// "/static/*" is the same as "/static/"
+				prefixBuilder.add(StringUtils.removeEnd(rule, "*"));
+			}
+		}
+		this.prefixes = prefixBuilder.build();
+		this.suffixes = suffixBuilder.build();
+	}
+
+	/**
+	 * Compiles the default rules together with configured ones.
+	 *
+	 * @param configured the configured rules, one per line, blank lines and
+	 *            lines starting with <code>#</code> are ignored; may be null
+	 * @return the compiled rules
+	 */
+	static BypassRules compile(String configured) {
+		List<String> extra = parse(configured);
+		if (extra.isEmpty()) {
+			return DEFAULT_RULES;
+		}
+		List<String> rules = new ArrayList<>(DEFAULTS);
+		rules.addAll(extra);
+		return new BypassRules(rules);
+	}
+
+	/**
+	 * @param configured the configured rules, may be null
+	 * @return the rules without blank lines and comments
+	 */
+	static List<String> parse(String configured) {
+		List<String> rules = new ArrayList<>();
+		if (configured != null) {
+			for (String line : configured.split("\\R")) {
+				String rule = line.trim();
+				if (!rule.isEmpty() && !rule.startsWith("#")) {
+					rules.add(rule);
+				}
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * @param path the path of a request below the context path, may be null
+	 * @return true if the path is let through unchecked
+	 */
+	boolean matches(String path) {
+		if (path == null) {
+			return false;
+		}
+		Node node = prefixes;
+		for (int i = 0; i < path.length() && node != null && !node.terminal; i++) {
+			node = node.child(path.charAt(i));
+		}
+		if (node != null && node.terminal) {
+			return true;
+		}
+		node = suffixes;
+		for (int i = path.length() - 1; i >= 0 && node != null && !node.terminal; i--) {
+			node = node.child(path.charAt(i));
+		}
+		return node != null && node.terminal;
+	}
+
+	/**
+	 * A node of a compiled trie, its children are sorted by their character.
+	 */
+	private static final class Node {
+		// a rule ends here
+		private final boolean terminal;
+		private final char[] labels;
+		private final Node[] children;
+
+		Node(boolean terminal, char[] labels, Node[] children) {
+			this.terminal = terminal;
+			this.labels = labels;
+			this.children = children;
+		}
+
+		Node child(char c) {
+			// few children per node, a linear scan beats a binary search
+			for (int i = 0; i < labels.length; i++) {
+				if (labels[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Collects the rules of a trie before it is compiled.
+	 */
+	private static final class Builder {
+		private boolean terminal;
+		private final Map<Character, Builder> children = new TreeMap<>();
+
+		void add(String rule) {
+			Builder node = this;
+			for (int i = 0; i < rule.length(); i++) {
+				node = node.children.computeIfAbsent(rule.charAt(i), c -> new Builder());
+			}
+			node.terminal = true;
+		}
+
+		Node build() {
+			char[] labels = new char[children.size()];
+			Node[] nodes = new Node[children.size()];
+			int i = 0;
+			for (Map.Entry<Character, Builder> child : children.entrySet()) {
+				labels[i] = child.getKey();
+				nodes[i] = child.getValue().build();
+				i++;
+			}
+			return new Node(terminal, labels, nodes);
+		}
+	}
+}
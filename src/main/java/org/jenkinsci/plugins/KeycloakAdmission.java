@@ -0,0 +1,168 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.util.SystemProperties;
+
+/**
+ * Bounds the number of code exchanges and token refreshes talking to keycloak
+ * at the same time. Calls over the limit wait in a short fair queue, when the
+ * queue is full or the wait times out they are rejected right away, so a
+ * burst of logins does not pile up on keycloak.
+ */
+final class KeycloakAdmission {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakAdmission.class.getName());
+
+	/**
+	 * Maximum number of code exchanges and refreshes talking to keycloak at the
+	 * same time.
+	 */
+	static final int MAX_CONCURRENT = SystemProperties.getInteger(KeycloakAdmission.class.getName() + ".maxConcurrent",
+			32);
+
+	/**
+	 * Maximum number of calls waiting for a slot, further calls are rejected
+	 * right away.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ int MAX_QUEUE = SystemProperties
+			.getInteger(KeycloakAdmission.class.getName() + ".maxQueue", 64);
+
+	/**
+	 * Milliseconds a call waits for a slot before it is rejected.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long QUEUE_TIMEOUT = SystemProperties
+			.getLong(KeycloakAdmission.class.getName() + ".queueTimeout", 2000L);
+
+	/**
+	 * Seconds a rejected browser is told to wait before it tries again.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ int RETRY_AFTER = SystemProperties
+			.getInteger(KeycloakAdmission.class.getName() + ".retryAfter", 5);
+
+	private static final KeycloakAdmission INSTANCE = new KeycloakAdmission(MAX_CONCURRENT);
+
+	private final int maxConcurrent;
+	// fair, so the calls which waited longest get the next slot
+	private final Semaphore permits;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final LongAdder rejected = new LongAdder();
+
+	KeycloakAdmission(int maxConcurrent) {
+		this.maxConcurrent = maxConcurrent;
+		this.permits = new Semaphore(maxConcurrent, true);
+	}
+
+	static KeycloakAdmission get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Thrown instead of calling keycloak when too many calls are in progress.
+	 */
+	static final class RejectedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RejectedException() {
+			super("Too many calls to keycloak in progress");
+		}
+	}
+
+	/**
+	 * Waits for a slot to call keycloak. The slot has to be released with
+	 * {@link #release()}.
+	 *
+	 * @throws RejectedException if the queue is full or the wait timed out
+	 * @throws InterruptedIOException if interrupted while waiting
+	 */
+	void acquire() throws RejectedException, InterruptedIOException {
+		long start = System.nanoTime();
+		try {
+			// honours the queue, unlike tryAcquire()
+			if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+			if (queued.incrementAndGet() > MAX_QUEUE) {
+				queued.decrementAndGet();
+				reject("queue is full");
+			}
+			try {
+				if (!permits.tryAcquire(QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					reject("no slot within " + QUEUE_TIMEOUT + " ms");
+				}
+			} finally {
+				queued.decrementAndGet();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to call keycloak");
+		} finally {
+			KeycloakMetrics.get().getAdmissionWait().record(System.nanoTime() - start);
+		}
+	}
+
+	private void reject(String reason) throws RejectedException {
+		rejected.increment();
+		LOGGER.log(Level.FINE, "Call to keycloak rejected, {0}", reason);
+		throw new RejectedException();
+	}
+
+	/**
+	 * Releases a slot acquired with {@link #acquire()}.
+	 */
+	void release() {
+		permits.release();
+	}
+
+	/**
+	 * Calls keycloak once a slot is free.
+	 *
+	 * @param call the call
+	 * @return the result of the call
+	 * @throws RejectedException if no slot became free in time
+	 * @throws IOException if the communication with keycloak fails
+	 * @throws HttpFailure if keycloak answers with an error
+	 */
+	<T> T call(KeycloakCircuitBreaker.KeycloakCall<T> call) throws IOException, HttpFailure {
+		acquire();
+		try {
+			return call.call();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @return the number of calls waiting for a slot
+	 */
+	int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of calls talking to keycloak
+	 */
+	int getActive() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of rejected calls
+	 */
+	long getRejected() {
+		return rejected.sum();
+	}
+}
@@ -1,16 +1,35 @@
 package org.jenkinsci.plugins;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.security.SecurityRealm;
+import jenkins.util.SystemProperties;
 
+import org.apache.commons.lang.StringUtils;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.ServerRequest;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+import org.keycloak.adapters.rotation.AdapterTokenVerifier;
+import org.keycloak.common.VerificationException;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.AccessTokenResponse;
 import org.keycloak.representations.IDToken;
+import org.keycloak.util.TokenUtil;
 import org.springframework.security.authentication.AbstractAuthenticationToken;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -25,11 +44,38 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 
 
 	private static final long serialVersionUID = 1L;
+	private static final Interner<GrantedAuthority> AUTHORITIES = Interners.newWeakInterner();
+	private static final Interner<List<GrantedAuthority>> ROLE_LISTS = Interners.newWeakInterner();
+	/**
+	 * Whether the complete token response, including the id token, is kept in
+	 * the session. It is only needed by code reading it from the authentication.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ boolean RETAIN_TOKEN_RESPONSE = SystemProperties
+			.getBoolean(KeycloakAuthentication.class.getName() + ".retainTokenResponse", false);
 	private final String userName;
+	// null for the keycloak JSON of the realm
+	private String tenant;
+	private List<GrantedAuthority> authorities;
 	private String refreshToken;
 	private String accessToken;
+	// key of the entry in the session store, null if the session is not persisted
+	private String persistentSession;
+	// only kept with RETAIN_TOKEN_RESPONSE, the tokens and deadlines are all the filter needs
 	private transient AccessTokenResponse accessTokenResponse = null;
-	private Calendar lastRefresh = Calendar.getInstance();
+	private long lastRefreshMillis = System.currentTimeMillis();
+	// only set in sessions serialized by version 2.3.x and older, moved to lastRefreshMillis by readResolve
+	@Deprecated
+	private Calendar lastRefresh;
+	// deadlines based on System.nanoTime(), set on each token response
+	private transient volatile long lastRefreshNanos;
+	private transient volatile long accessExpiryNanos;
+	private transient volatile long refreshExpiryNanos;
+	// false until the first token response, e.g. for a deserialized session
+	private transient volatile boolean deadlinesKnown;
+	private transient CompletableFuture<Void> refreshInFlight;
+	private transient volatile long lastAccess = System.nanoTime();
+	private transient boolean backgroundRefresh;
 	
 	/**
 	 * Constructor
@@ -39,37 +85,141 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 	 * @param tokenResponse the {@link AccessTokenResponse}
 	 */
 	public KeycloakAuthentication(IDToken idToken, AccessToken accessToken, String refreshToken, AccessTokenResponse tokenResponse, String resourceName) {
-		super(buildRoles(accessToken, resourceName));
+		// the authorities are kept here, the super class would copy the shared list
+		super(null);
+		this.authorities = buildRoles(accessToken, resourceName);
 		this.userName = idToken.getPreferredUsername();
 		this.setRefreshToken(refreshToken);
 		this.setAccessTokenResponse(tokenResponse);
 		setAuthenticated(true);
 	}
 
+	/**
+	 * Constructor for a request authenticated with a bearer access token. It has
+	 * no refresh token and expires with the access token.
+	 * @param accessToken the verified keycloak access token
+	 * @param resourceName the client the resource roles are taken from
+	 */
+	KeycloakAuthentication(AccessToken accessToken, String resourceName) {
+		super(null);
+		this.authorities = buildRoles(accessToken, resourceName);
+		this.userName = accessToken.getPreferredUsername();
+		long now = System.nanoTime();
+		long remainingMillis = accessToken.getExp() == null ? 0L
+				: TimeUnit.SECONDS.toMillis(accessToken.getExp()) - System.currentTimeMillis();
+		lastRefreshNanos = now;
+		accessExpiryNanos = now + TimeUnit.MILLISECONDS.toNanos(remainingMillis);
+		refreshExpiryNanos = accessExpiryNanos;
+		deadlinesKnown = true;
+		setAuthenticated(true);
+	}
+
+	/**
+	 * Constructor for a session restored from the session store. The access
+	 * token is expired, so the first request refreshes it.
+	 * @param userName the name of the user
+	 * @param roles the authorities of the user when the session was stored
+	 * @param refreshToken the keycloak refresh token
+	 * @param refreshExpiresAt when the refresh token expires, in milliseconds
+	 *            since the epoch
+	 */
+	KeycloakAuthentication(String userName, Collection<String> roles, String refreshToken, long refreshExpiresAt) {
+		super(null);
+		List<GrantedAuthority> restored = new ArrayList<>(roles.size());
+		for (String role : roles) {
+			restored.add(authority(role));
+		}
+		this.authorities = ROLE_LISTS.intern(List.copyOf(restored));
+		this.userName = userName;
+		this.refreshToken = refreshToken;
+		long now = System.nanoTime();
+		lastRefreshNanos = now;
+		accessExpiryNanos = now;
+		refreshExpiryNanos = now + TimeUnit.MILLISECONDS.toNanos(refreshExpiresAt - System.currentTimeMillis());
+		deadlinesKnown = true;
+		setAuthenticated(true);
+	}
+
+	/**
+	 * Maps the roles of the access token to authorities. Equal authorities and
+	 * equal role lists of different users share one immutable instance.
+	 */
 	@SuppressWarnings("unchecked")
-	private static Collection<GrantedAuthority> buildRoles(AccessToken accessToken, String resourceName) {
+	static List<GrantedAuthority> buildRoles(AccessToken accessToken, String resourceName) {
 		List<GrantedAuthority> roles = new ArrayList<>();
 
 		if (accessToken != null && accessToken.getRealmAccess() != null) {
 			for (String role : accessToken.getRealmAccess().getRoles()) {
-				roles.add(new SimpleGrantedAuthority(role));
+				roles.add(authority(role));
 			}
 		}
 
 		if(accessToken != null && accessToken.getOtherClaims().containsKey("roles")) {
 			for(String role : (List<String>) accessToken.getOtherClaims().get("roles")) {
-				roles.add(new SimpleGrantedAuthority(role));
+				roles.add(authority(role));
 			}
 		}
 
 		if (accessToken != null && accessToken.getResourceAccess().containsKey(resourceName)) {
 			for (String role : accessToken.getResourceAccess().get(resourceName).getRoles()) {
-				roles.add(new SimpleGrantedAuthority(role));
+				roles.add(authority(role));
 			}
 		}
 
 		roles.add(SecurityRealm.AUTHENTICATED_AUTHORITY2);
-		return roles;
+		return ROLE_LISTS.intern(List.copyOf(roles));
+	}
+
+	private static GrantedAuthority authority(String role) {
+		return AUTHORITIES.intern(new SimpleGrantedAuthority(role));
+	}
+
+	@Override
+	public Collection<GrantedAuthority> getAuthorities() {
+		return authorities;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof KeycloakAuthentication)) {
+			return false;
+		}
+		KeycloakAuthentication other = (KeycloakAuthentication) obj;
+		return Objects.equals(userName, other.userName) && authorities.equals(other.authorities)
+				&& Objects.equals(getDetails(), other.getDetails()) && isAuthenticated() == other.isAuthenticated();
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(userName, authorities, getDetails(), isAuthenticated());
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [Principal=" + userName + ", Authenticated=" + isAuthenticated()
+				+ ", Granted Authorities=" + authorities + "]";
+	}
+
+	@SuppressWarnings("deprecation")
+	private Object readResolve() {
+		// older versions kept the authorities in the super class
+		Collection<GrantedAuthority> serialized = authorities != null ? authorities : super.getAuthorities();
+		// share the authorities with the sessions already in memory
+		List<GrantedAuthority> roles = new ArrayList<>(serialized.size());
+		for (GrantedAuthority authority : serialized) {
+			if (authority != null) {
+				roles.add(AUTHORITIES.intern(authority));
+			}
+		}
+		authorities = ROLE_LISTS.intern(List.copyOf(roles));
+		if (lastRefresh != null) {
+			lastRefreshMillis = lastRefresh.getTimeInMillis();
+			lastRefresh = null;
+		}
+		return this;
 	}
 
 	@Override
@@ -87,6 +237,31 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 		return this.userName;
 	}
 
+	/**
+	 * Returns the tenant the user logged in with.
+	 * @return {@link String} the name of the tenant, or null for the keycloak
+	 *         JSON of the realm
+	 */
+	public String getTenant() {
+		return tenant;
+	}
+
+	void setTenant(String tenant) {
+		this.tenant = tenant;
+	}
+
+	/**
+	 * @return the key of this session in the session store, or null if it is
+	 *         not persisted
+	 */
+	String getPersistentSession() {
+		return persistentSession;
+	}
+
+	void setPersistentSession(String persistentSession) {
+		this.persistentSession = persistentSession;
+	}
+
 	/**
 	 * Get the keycloak refresh token
 	 * @return {@link String} the refresh token
@@ -97,7 +272,8 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 
 	/**
 	 * Get the keycloak access token
-	 * @return {@link String} the access token
+	 * @return {@link String} the encoded access token, or <code>null</code> if
+	 *         no token response was received since the session was restored
 	 */
 	public String getAccessToken() {
 		return accessToken;
@@ -120,12 +296,26 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 	}
 
 	/**
-	 * Returns the latest AccessTokenResponse
+	 * Returns the latest AccessTokenResponse. To keep the sessions small the
+	 * complete response is only retained with the system property
+	 * <code>org.jenkinsci.plugins.KeycloakAuthentication.retainTokenResponse=true</code>.
+	 * Otherwise a response with the lifetimes, the access and the refresh
+	 * token, but without the id token, is returned.
 	 * 
-	 * @return {@link AccessTokenResponse}
+	 * @return {@link AccessTokenResponse} or <code>null</code> if no token
+	 *         response was received since the session was restored
 	 */
 	public AccessTokenResponse getAccessTokenResponse() {
-		return accessTokenResponse;
+		if (accessTokenResponse != null || !deadlinesKnown) {
+			return accessTokenResponse;
+		}
+		AccessTokenResponse response = new AccessTokenResponse();
+		response.setTokenType(TokenUtil.TOKEN_TYPE_BEARER);
+		response.setToken(accessToken);
+		response.setRefreshToken(refreshToken);
+		response.setExpiresIn(TimeUnit.NANOSECONDS.toSeconds(accessExpiryNanos - lastRefreshNanos));
+		response.setRefreshExpiresIn(TimeUnit.NANOSECONDS.toSeconds(refreshExpiryNanos - lastRefreshNanos));
+		return response;
 	}
 
 	/**
@@ -133,9 +323,133 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 	 * @param accessTokenResponse
 	 */
 	public void setAccessTokenResponse(AccessTokenResponse accessTokenResponse) {
-		this.accessTokenResponse = accessTokenResponse;
+		if (RETAIN_TOKEN_RESPONSE) {
+			this.accessTokenResponse = accessTokenResponse;
+		}
+		setAccessToken(accessTokenResponse.getToken());
 		setRefreshToken(accessTokenResponse.getRefreshToken());
-		setLastRefresh(new Date());
+		lastRefreshMillis = System.currentTimeMillis();
+		long now = System.nanoTime();
+		lastRefreshNanos = now;
+		accessExpiryNanos = now + TimeUnit.SECONDS.toNanos(accessTokenResponse.getExpiresIn());
+		refreshExpiryNanos = now + TimeUnit.SECONDS.toNanos(accessTokenResponse.getRefreshExpiresIn());
+		deadlinesKnown = true;
+	}
+
+	/**
+	 * Returns whether the expiry of the tokens is known, which is not the case
+	 * for a session restored from disk.
+	 *
+	 * @return boolean - true after a token response was received
+	 */
+	boolean hasDeadlines() {
+		return deadlinesKnown;
+	}
+
+	/**
+	 * Refreshes the tokens of this authentication at keycloak. Concurrent callers
+	 * share a single call: the first one performs the refresh, all others wait for
+	 * its result. If the refresh token a caller based its decision on has already
+	 * been replaced by another request, keycloak is not contacted again.
+	 *
+	 * @param deployment the keycloak deployment to refresh against
+	 * @param seenRefreshToken the refresh token the caller has seen when it decided to refresh
+	 * @param timeoutMillis how long to wait for a refresh performed by another request
+	 * @param verify whether the new access token is verified against the realm keys
+	 * @return <code>false</code> if the refresh of another request did not finish
+	 *         in time
+	 * @throws IOException if the communication with keycloak fails
+	 * @throws HttpFailure if keycloak rejects the refresh
+	 * @throws VerificationException if the new access token is not valid
+	 */
+	boolean refresh(KeycloakDeployment deployment, String seenRefreshToken, long timeoutMillis,
+			boolean verify) throws IOException, HttpFailure, VerificationException {
+		CompletableFuture<Void> inFlight;
+		CompletableFuture<Void> own;
+		String currentRefreshToken;
+		synchronized (this) {
+			inFlight = refreshInFlight;
+			if (inFlight != null) {
+				own = null;
+				currentRefreshToken = null;
+			} else if (!StringUtils.equals(seenRefreshToken, refreshToken)) {
+				// already refreshed by a concurrent request
+				return true;
+			} else {
+				own = new CompletableFuture<>();
+				refreshInFlight = own;
+				currentRefreshToken = refreshToken;
+			}
+		}
+		if (own == null) {
+			return awaitRefresh(inFlight, timeoutMillis);
+		}
+		try {
+			AccessTokenResponse atr = invokeRefresh(deployment, currentRefreshToken);
+			if (verify) {
+				// signature and expiry, the realm keys are cached by the deployment
+				AdapterTokenVerifier.verifyToken(atr.getToken(), deployment);
+			}
+			synchronized (this) {
+				setAccessTokenResponse(atr);
+			}
+			if (persistentSession != null) {
+				// the refresh token may have been rotated
+				KeycloakSessionStore.refreshed(this);
+			}
+			own.complete(null);
+			return true;
+		} catch (IOException | HttpFailure | VerificationException | RuntimeException e) {
+			own.completeExceptionally(e);
+			throw e;
+		} finally {
+			synchronized (this) {
+				refreshInFlight = null;
+			}
+		}
+	}
+
+	private AccessTokenResponse invokeRefresh(KeycloakDeployment deployment, String refreshToken)
+			throws IOException, HttpFailure {
+		long start = System.nanoTime();
+		KeycloakOperationEvent event = KeycloakOperationEvent.start();
+		Throwable failure = null;
+		try {
+			// waiting for a slot is not a failure of keycloak, so it happens outside of the circuit breaker
+			return KeycloakAdmission.get().call(() -> KeycloakCircuitBreaker.get(deployment)
+					.call(() -> ServerRequest.invokeRefresh(deployment, refreshToken)));
+		} catch (IOException | HttpFailure | RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			KeycloakMetrics.get().record(KeycloakMetrics.Operation.REFRESH, start, failure);
+			event.end(KeycloakMetrics.Operation.REFRESH.getMetricName(), userName, tenant, failure);
+		}
+	}
+
+	private static boolean awaitRefresh(CompletableFuture<Void> inFlight, long timeoutMillis)
+			throws IOException, HttpFailure, VerificationException {
+		try {
+			inFlight.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for token refresh");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HttpFailure) {
+				throw (HttpFailure) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof VerificationException) {
+				throw (VerificationException) cause;
+			}
+			throw new IOException("Token refresh failed", cause);
+		}
 	}
 
 	/**
@@ -143,24 +457,92 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 	 * @return {@link Date}
 	 */
 	public Date getLastRefresh() {
-		return lastRefresh.getTime();
+		return new Date(lastRefreshMillis);
 	}
 
 	/**
 	 * Get the date the token is from
 	 * @return {@link Calendar}
+	 * @deprecated use {@link #getLastRefresh()}
 	 */
+	@Deprecated
 	public Calendar getLastRefreshDateAsCalendar() {
-		return lastRefresh;
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(lastRefreshMillis);
+		return calendar;
 	}
 	/**
 	 * Set the date the token is from
 	 * @param lastRefresh
 	 */
 	public void setLastRefresh(Date lastRefresh) {
-		this.lastRefresh.setTime(lastRefresh);
+		long shift = TimeUnit.MILLISECONDS.toNanos(lastRefresh.getTime() - lastRefreshMillis);
+		lastRefreshMillis = lastRefresh.getTime();
+		// the token lifetimes stay the same, the deadlines move with the refresh time
+		lastRefreshNanos += shift;
+		accessExpiryNanos += shift;
+		refreshExpiryNanos += shift;
 	}
-	
+
+	/**
+	 * Returns the time left until the access token expires.
+	 *
+	 * @return long - the milliseconds until the access token expires
+	 */
+	long getAccessExpiresInMillis() {
+		if (!deadlinesKnown)
+			return 0;
+		return TimeUnit.NANOSECONDS.toMillis(accessExpiryNanos - System.nanoTime());
+	}
+
+	/**
+	 * Returns the time left until the refresh token expires.
+	 *
+	 * @return long - the milliseconds until the refresh token expires
+	 */
+	long getRefreshExpiresInMillis() {
+		if (!deadlinesKnown)
+			return 0;
+		return TimeUnit.NANOSECONDS.toMillis(refreshExpiryNanos - System.nanoTime());
+	}
+
+	/**
+	 * Records that the session of this authentication was used by a request.
+	 */
+	void touch() {
+		lastAccess = System.nanoTime();
+	}
+
+	/**
+	 * Marks the background refresh of this authentication as running.
+	 *
+	 * @return boolean - false if the background refresh was already running
+	 */
+	synchronized boolean startBackgroundRefresh() {
+		if (backgroundRefresh)
+			return false;
+		backgroundRefresh = true;
+		return true;
+	}
+
+	/**
+	 * Marks the background refresh of this authentication as stopped.
+	 */
+	synchronized void stopBackgroundRefresh() {
+		backgroundRefresh = false;
+	}
+
+	/**
+	 * Checks whether the session of this authentication was not used for the
+	 * given time.
+	 *
+	 * @param idleMillis the idle time in milliseconds
+	 * @return boolean - the result of the check
+	 */
+	boolean isIdle(long idleMillis) {
+		return System.nanoTime() - lastAccess > TimeUnit.MILLISECONDS.toNanos(idleMillis);
+	}
+
 	/**
 	 * Checks whether the refresh token is expired or not.
 	 * 
@@ -168,13 +550,20 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 	 */
 	public boolean isRefreshExpired()
 	{
-		if(accessTokenResponse==null)
-			return true;
-		Calendar compareDate = Calendar.getInstance();
-		compareDate.add(Calendar.SECOND, (int)(accessTokenResponse.getRefreshExpiresIn())*-1);
-		return compareDate.after(lastRefresh);
+		return isRefreshExpired(System.nanoTime());
 	}
-	
+
+	/**
+	 * Checks whether the refresh token is expired at the given time.
+	 *
+	 * @param nowNanos the current {@link System#nanoTime()}
+	 * @return boolean - the result of the check
+	 */
+	boolean isRefreshExpired(long nowNanos)
+	{
+		return !deadlinesKnown || nowNanos - refreshExpiryNanos > 0;
+	}
+
 	/**
 	 * Checks whether the access token is expired or not.
 	 * 
@@ -182,11 +571,30 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken {
 	 */
 	public boolean isAccessExpired()
 	{
-		if(accessTokenResponse==null)
-			return true;
-		Calendar compareDate = Calendar.getInstance();
-		compareDate.add(Calendar.SECOND, (int)(accessTokenResponse.getExpiresIn())*-1);
-		return compareDate.after(lastRefresh);
-	}	
+		return isAccessExpired(System.nanoTime());
+	}
+
+	/**
+	 * Checks whether the access token is expired at the given time.
+	 *
+	 * @param nowNanos the current {@link System#nanoTime()}
+	 * @return boolean - the result of the check
+	 */
+	boolean isAccessExpired(long nowNanos)
+	{
+		return !deadlinesKnown || nowNanos - accessExpiryNanos > 0;
+	}
+
+	/**
+	 * Checks whether the last refresh is older than the given time.
+	 *
+	 * @param ageNanos the age in nanoseconds
+	 * @param nowNanos the current {@link System#nanoTime()}
+	 * @return boolean - the result of the check
+	 */
+	boolean isLastRefreshOlderThan(long ageNanos, long nowNanos)
+	{
+		return nowNanos - lastRefreshNanos > ageNanos;
+	}
 
 }
@@ -0,0 +1,294 @@
+package org.jenkinsci.plugins;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import hudson.ProxyConfiguration;
+import hudson.Util;
+import hudson.security.SecurityRealm;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Cache of the resized avatar images of the users, stored in
+ * <code>JENKINS_HOME/keycloak-avatars</code>. Each image is fetched once per
+ * picture URL and size, the least recently used images are removed when the
+ * cache is full. Pictures are only fetched from the keycloak servers of the
+ * realm and the hosts allowed by the administrator.
+ */
+final class KeycloakAvatarCache {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakAvatarCache.class.getName());
+
+	/**
+	 * Maximum number of cached images.
+	 */
+	static final int MAX_ENTRIES = SystemProperties.getInteger(KeycloakAvatarCache.class.getName() + ".maxEntries", 2000);
+
+	/**
+	 * Largest width and height an image is resized to.
+	 */
+	static final int MAX_SIZE = 512;
+
+	/**
+	 * Further hosts the pictures may be fetched from, separated by commas.
+	 */
+	static final String ALLOWED_HOSTS = SystemProperties.getString(KeycloakAvatarCache.class.getName() + ".allowedHosts", "");
+
+	private static final int MAX_DOWNLOAD = 1024 * 1024;
+
+	// a small file can declare a huge image, it is rejected before decoding
+	private static final long MAX_PIXELS = 4096L * 4096L;
+
+	private static final String SUFFIX = ".png";
+
+	private static KeycloakAvatarCache instance;
+
+	private final Path dir;
+	// access ordered, the eldest entry is the least recently used one
+	private final Map<String, Path> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private final ConcurrentMap<String, CompletableFuture<Path>> loading = new ConcurrentHashMap<>();
+
+	KeycloakAvatarCache(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+		// images of earlier runs, the oldest one is evicted first
+		try (Stream<Path> files = Files.list(dir)) {
+			files.filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+					.sorted(Comparator.comparingLong(file -> file.toFile().lastModified()))
+					.forEach(file -> {
+						String name = file.getFileName().toString();
+						entries.put(name.substring(0, name.length() - SUFFIX.length()), file);
+					});
+		}
+	}
+
+	static synchronized KeycloakAvatarCache get() throws IOException {
+		if (instance == null) {
+			instance = new KeycloakAvatarCache(new File(Jenkins.get().getRootDir(), "keycloak-avatars").toPath());
+		}
+		return instance;
+	}
+
+	/**
+	 * @return true if the active security realm serves the avatars from this
+	 *         cache
+	 */
+	static boolean isEnabled() {
+		Jenkins j = Jenkins.getInstanceOrNull();
+		if (j == null) {
+			return false;
+		}
+		SecurityRealm sr = j.getSecurityRealm();
+		return sr instanceof KeycloakSecurityRealm && ((KeycloakSecurityRealm) sr).isKeycloakAvatarCache();
+	}
+
+	/**
+	 * Checks whether a picture may be fetched. Only http and https URLs of the
+	 * keycloak servers and of the {@link #ALLOWED_HOSTS} are, so users cannot
+	 * make Jenkins call other hosts through their picture URL.
+	 *
+	 * @param url the picture URL of the user
+	 * @param keycloakHosts the hosts of the keycloak servers of the realm
+	 * @return true if the picture may be fetched
+	 */
+	static boolean isAllowed(String url, Collection<String> keycloakHosts) {
+		URI uri;
+		try {
+			uri = new URI(url);
+		} catch (URISyntaxException e) {
+			return false;
+		}
+		String scheme = uri.getScheme();
+		String host = uri.getHost();
+		if (host == null || !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+			return false;
+		}
+		host = host.toLowerCase(Locale.ROOT);
+		if (keycloakHosts.contains(host)) {
+			return true;
+		}
+		for (String allowed : ALLOWED_HOSTS.split(",")) {
+			if (host.equals(allowed.trim().toLowerCase(Locale.ROOT))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param url the picture URL of the user
+	 * @param width the requested width
+	 * @param height the requested height
+	 * @return the key of the resized image, also used as its ETag
+	 */
+	static String key(String url, int width, int height) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest((width + "x" + height + " " + url).getBytes(StandardCharsets.UTF_8));
+			return Util.toHexString(hash);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the resized image, fetching it if it is not cached yet. Concurrent
+	 * requests for the same image share one fetch.
+	 *
+	 * @param url the picture URL of the user
+	 * @param width the requested width
+	 * @param height the requested height
+	 * @return the PNG file of the image
+	 * @throws IOException if the image could not be fetched or is not an image
+	 * @throws InterruptedException if interrupted while waiting for the image
+	 */
+	Path get(String url, int width, int height) throws IOException, InterruptedException {
+		String key = key(url, width, height);
+		synchronized (entries) {
+			Path file = entries.get(key);
+			if (file != null && Files.exists(file)) {
+				return file;
+			}
+		}
+		CompletableFuture<Path> own = new CompletableFuture<>();
+		CompletableFuture<Path> existing = loading.putIfAbsent(key, own);
+		if (existing != null) {
+			try {
+				return existing.get(30, TimeUnit.SECONDS);
+			} catch (ExecutionException | TimeoutException e) {
+				throw new IOException("Failed to fetch avatar " + url, e);
+			}
+		}
+		try {
+			Path file = fetch(url, width, height, key);
+			synchronized (entries) {
+				entries.put(key, file);
+				evict();
+			}
+			own.complete(file);
+			return file;
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			own.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key);
+		}
+	}
+
+	private Path fetch(String url, int width, int height, String key) throws IOException, InterruptedException {
+		HttpRequest request = ProxyConfiguration.newHttpRequestBuilder(URI.create(url))
+				.timeout(Duration.ofSeconds(10)).GET().build();
+		// a redirect could lead to a host which is not allowed
+		HttpClient client = ProxyConfiguration.newHttpClientBuilder().followRedirects(HttpClient.Redirect.NEVER)
+				.build();
+		HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+		byte[] bytes;
+		try (InputStream in = response.body()) {
+			if (response.statusCode() != 200) {
+				throw new IOException("Avatar " + url + " returned status " + response.statusCode());
+			}
+			bytes = in.readNBytes(MAX_DOWNLOAD + 1);
+		}
+		if (bytes.length > MAX_DOWNLOAD) {
+			throw new IOException("Avatar " + url + " is larger than " + MAX_DOWNLOAD + " bytes");
+		}
+		BufferedImage image = decode(url, bytes);
+		BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			g.dispose();
+		}
+		Path tmp = Files.createTempFile(dir, key, ".tmp");
+		try {
+			ImageIO.write(scaled, "png", tmp.toFile());
+			Path file = dir.resolve(key + SUFFIX);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOGGER.log(Level.FINE, "Cached avatar {0} in {1}x{2}", new Object[] { url, width, height });
+			return file;
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Decodes an image once the size in its header was checked.
+	 *
+	 * @param url the picture URL, for the messages
+	 * @param bytes the fetched image
+	 * @return the decoded image
+	 * @throws IOException if it is not a supported image or has too many pixels
+	 */
+	static BufferedImage decode(String url, byte[] bytes) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+			Iterator<ImageReader> readers = in == null ? Collections.emptyIterator() : ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("Avatar " + url + " is not a supported image");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+				if (pixels > MAX_PIXELS) {
+					throw new IOException("Avatar " + url + " has more than " + MAX_PIXELS + " pixels");
+				}
+				return reader.read(0);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Path>> it = entries.entrySet().iterator();
+		while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+			Path file = it.next().getValue();
+			it.remove();
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Failed to remove cached avatar " + file, e);
+			}
+		}
+	}
+}
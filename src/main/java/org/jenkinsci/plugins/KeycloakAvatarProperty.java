@@ -72,7 +72,14 @@ public class KeycloakAvatarProperty extends UserProperty {
 
         public AvatarImage(String url) {
             this.url = url;
-            AvatarContributor.allow(url);
+            allow();
+        }
+
+        private void allow() {
+            // images served from the avatar cache need no exception in the CSP
+            if (!KeycloakAvatarCache.isEnabled()) {
+                AvatarContributor.allow(url);
+            }
         }
 
         public boolean isValid() {
@@ -80,7 +87,7 @@ public class KeycloakAvatarProperty extends UserProperty {
         }
 
         private Object readResolve() {
-            AvatarContributor.allow(url);
+            allow();
             return this;
         }
     }
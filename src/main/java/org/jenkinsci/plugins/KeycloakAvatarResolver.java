@@ -2,8 +2,12 @@
 package org.jenkinsci.plugins;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.User;
 import hudson.tasks.UserAvatarResolver;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
 
 @Extension
 public class KeycloakAvatarResolver extends UserAvatarResolver {
@@ -12,9 +16,22 @@ public class KeycloakAvatarResolver extends UserAvatarResolver {
         if (user != null) {
             KeycloakAvatarProperty avatarProperty = user.getProperty(KeycloakAvatarProperty.class);
             if (avatarProperty != null) {
+                if (avatarProperty.isHasAvatar() && KeycloakAvatarCache.isEnabled()) {
+                    // served by Jenkins from the avatar cache
+                    return rootPath() + KeycloakSecurityRealm.AVATAR_URL + Util.rawEncode(user.getId()) + "?size="
+                            + width + "x" + height;
+                }
                 return avatarProperty.getAvatarUrl();
             }
         }
         return null;
     }
+
+    private static String rootPath() {
+        StaplerRequest request = Stapler.getCurrentRequest();
+        if (request != null) {
+            return request.getContextPath() + "/";
+        }
+        return Jenkins.get().getRootUrl();
+    }
 }
@@ -0,0 +1,204 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.util.SystemProperties;
+
+/**
+ * Stops calling keycloak for a while after it repeatedly failed to answer, so
+ * an outage does not tie up request threads with timeouts. Only unavailability
+ * counts: I/O errors, timeouts and 5xx responses. A rejected grant is an answer
+ * and closes the circuit. After the open period a single trial call is let
+ * through, if it fails as well the open period is doubled up to a maximum.
+ * Each keycloak server has its own circuit, so an outage of the server of one
+ * tenant does not suspend the calls of the others.
+ */
+final class KeycloakCircuitBreaker {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakCircuitBreaker.class.getName());
+
+	/**
+	 * Number of consecutive failed calls which open the circuit.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ int FAILURE_THRESHOLD = SystemProperties
+			.getInteger(KeycloakCircuitBreaker.class.getName() + ".failureThreshold", 5);
+
+	/**
+	 * Milliseconds the circuit stays open the first time.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long OPEN_MILLIS = SystemProperties
+			.getLong(KeycloakCircuitBreaker.class.getName() + ".openMillis", 5000L);
+
+	/**
+	 * Maximum milliseconds the circuit stays open after repeated failed trials.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long MAX_OPEN_MILLIS = SystemProperties
+			.getLong(KeycloakCircuitBreaker.class.getName() + ".maxOpenMillis", 60000L);
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	// by the URL of the keycloak server
+	private static final ConcurrentMap<String, KeycloakCircuitBreaker> BY_SERVER = new ConcurrentHashMap<>();
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openMillis = OPEN_MILLIS;
+	private long openUntil;
+
+	KeycloakCircuitBreaker() {
+	}
+
+	/**
+	 * @param deployment the deployment called, with relative URLs the one of
+	 *            the realm configuration rather than one resolved for a request
+	 * @return the circuit of the keycloak server of the deployment
+	 */
+	static KeycloakCircuitBreaker get(KeycloakDeployment deployment) {
+		return get(deployment.getAuthServerBaseUrl());
+	}
+
+	/**
+	 * @param authServerUrl the URL of the keycloak server
+	 * @return the circuit of the keycloak server
+	 */
+	static KeycloakCircuitBreaker get(String authServerUrl) {
+		return BY_SERVER.computeIfAbsent(String.valueOf(authServerUrl), url -> new KeycloakCircuitBreaker());
+	}
+
+	/**
+	 * A call to keycloak.
+	 */
+	@FunctionalInterface
+	interface KeycloakCall<T> {
+		T call() throws IOException, HttpFailure;
+	}
+
+	/**
+	 * Thrown instead of calling keycloak while the circuit is open.
+	 */
+	static final class OpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		OpenException() {
+			super("Keycloak is unavailable, calls are suspended");
+		}
+	}
+
+	/**
+	 * Calls keycloak unless the circuit is open.
+	 *
+	 * @param call the call
+	 * @return the result of the call
+	 * @throws OpenException if the circuit is open
+	 * @throws IOException if the communication with keycloak fails
+	 * @throws HttpFailure if keycloak answers with an error
+	 */
+	<T> T call(KeycloakCall<T> call) throws IOException, HttpFailure {
+		if (!allowRequest()) {
+			throw new OpenException();
+		}
+		try {
+			T result = call.call();
+			onAnswer();
+			return result;
+		} catch (IOException | HttpFailure e) {
+			if (isUnavailable(e)) {
+				onFailure();
+			} else {
+				onAnswer();
+			}
+			throw e;
+		} catch (RuntimeException e) {
+			onAnswer();
+			throw e;
+		} catch (Error e) {
+			// says nothing about keycloak, but must not leave the trial call running forever
+			onError();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks whether a failed call means keycloak is unavailable, as opposed to
+	 * keycloak rejecting the request.
+	 *
+	 * @param failure the failure of a call to keycloak
+	 * @return true for I/O errors, timeouts, 5xx responses and an open circuit
+	 */
+	static boolean isUnavailable(Throwable failure) {
+		if (failure instanceof HttpFailure) {
+			return ((HttpFailure) failure).getStatus() >= 500;
+		}
+		return failure instanceof IOException;
+	}
+
+	/**
+	 * @return true if calls are currently suspended
+	 */
+	synchronized boolean isOpen() {
+		return state != State.CLOSED;
+	}
+
+	private synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.nanoTime() - openUntil >= 0) {
+				// let a single trial call through
+				state = State.HALF_OPEN;
+				return true;
+			}
+			return false;
+		default:
+			// the trial call is still running
+			return false;
+		}
+	}
+
+	private synchronized void onAnswer() {
+		if (state != State.CLOSED) {
+			LOGGER.log(Level.INFO, "Keycloak answers again, calls are resumed");
+		}
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		openMillis = OPEN_MILLIS;
+	}
+
+	private synchronized void onError() {
+		if (state == State.HALF_OPEN) {
+			open();
+		}
+	}
+
+	private synchronized void onFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN) {
+			openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+			open();
+		} else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+			open();
+		}
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openMillis);
+		LOGGER.log(Level.WARNING, "Keycloak is unavailable after {0} failed calls, calls are suspended for {1} ms",
+				new Object[] { consecutiveFailures, openMillis });
+	}
+}
@@ -0,0 +1,236 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.ssl.SSLContexts;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+
+import jenkins.util.Timer;
+
+/**
+ * The pooled HTTP client used for all calls to keycloak. It reports the time
+ * spent waiting for a connection and for keycloak to {@link KeycloakMetrics}.
+ */
+final class KeycloakHttpClient {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakHttpClient.class.getName());
+
+	// shared by all clients, so TLS sessions survive a rebuild of the deployment
+	private static SSLContext sslContext;
+
+	// the clients of all deployments in use
+	private static final Set<KeycloakHttpClient> ACTIVE = ConcurrentHashMap.newKeySet();
+
+	private final CloseableHttpClient client;
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	private KeycloakHttpClient(AdapterConfig adapterConfig, KeycloakHttpClientConfig config) {
+		HostnameVerifier hostnameVerifier = adapterConfig.isAllowAnyHostname() ? NoopHostnameVerifier.INSTANCE
+				: SSLConnectionSocketFactory.getDefaultHostnameVerifier();
+		connectionManager = new InstrumentedConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", new SSLConnectionSocketFactory(sslContext(), hostnameVerifier)).build());
+		connectionManager.setMaxTotal(config.getConnectionPoolSize());
+		// usually all calls go to a single keycloak host
+		connectionManager.setDefaultMaxPerRoute(config.getConnectionPoolSize());
+		connectionManager.setValidateAfterInactivity(1000);
+
+		long keepAlive = config.getKeepAlive();
+		ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+			long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+		};
+		HttpClientBuilder builder = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setRequestExecutor(new InstrumentedRequestExecutor())
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.evictExpiredConnections()
+				.evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+				.disableCookieManagement()
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(config.getConnectTimeout())
+						.setSocketTimeout(config.getSocketTimeout())
+						.setConnectionRequestTimeout(config.getConnectionRequestTimeout())
+						.build());
+		if (adapterConfig.getProxyUrl() != null) {
+			builder.setProxy(HttpHost.create(adapterConfig.getProxyUrl()));
+		}
+		client = builder.build();
+	}
+
+	private static synchronized SSLContext sslContext() {
+		if (sslContext == null) {
+			sslContext = SSLContexts.createSystemDefault();
+		}
+		return sslContext;
+	}
+
+	/**
+	 * Applies the HTTP client settings to a keycloak JSON configuration before the
+	 * deployment is built from it.
+	 *
+	 * @param adapterConfig the parsed keycloak JSON
+	 * @param config the HTTP client settings of the realm
+	 */
+	static void configure(AdapterConfig adapterConfig, KeycloakHttpClientConfig config) {
+		adapterConfig.setConnectionPoolSize(config.getConnectionPoolSize());
+		adapterConfig.setConnectionTimeout(config.getConnectTimeout());
+		adapterConfig.setSocketTimeout(config.getSocketTimeout());
+	}
+
+	/**
+	 * Replaces the HTTP client of a freshly built deployment with a managed one.
+	 * Deployments using a trust store, a client key store or a disabled trust
+	 * manager keep the client built by keycloak, which knows how to set these up.
+	 *
+	 * @param deployment the deployment built from the keycloak JSON
+	 * @param adapterConfig the parsed keycloak JSON
+	 * @param config the HTTP client settings of the realm
+	 * @return the managed client, to be retired with the deployment, or null if
+	 *         the client of keycloak is used
+	 */
+	static KeycloakHttpClient install(KeycloakDeployment deployment, AdapterConfig adapterConfig,
+			KeycloakHttpClientConfig config) {
+		if (adapterConfig.getTruststore() != null || adapterConfig.getClientKeystore() != null
+				|| adapterConfig.isDisableTrustManager()) {
+			LOGGER.log(Level.FINE, "Custom TLS setup in keycloak JSON, using the HTTP client of keycloak");
+			return null;
+		}
+		KeycloakHttpClient httpClient = new KeycloakHttpClient(adapterConfig, config);
+		deployment.setClient(httpClient.client);
+		ACTIVE.add(httpClient);
+		return httpClient;
+	}
+
+	/**
+	 * Closes this client after its deployment was replaced.
+	 */
+	void retire() {
+		if (ACTIVE.remove(this)) {
+			// let requests still using the old deployment finish first
+			Timer.get().schedule(this::close, 1, TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * @return whether the client was retired and is closed or about to be
+	 */
+	boolean isRetired() {
+		return !ACTIVE.contains(this);
+	}
+
+	/**
+	 * @return the state of the connection pools of all deployments in use, or
+	 *         null if the plugin manages no HTTP client
+	 */
+	static PoolStats getTotalPoolStats() {
+		if (ACTIVE.isEmpty()) {
+			return null;
+		}
+		int leased = 0;
+		int pending = 0;
+		int available = 0;
+		int max = 0;
+		for (KeycloakHttpClient client : ACTIVE) {
+			PoolStats stats = client.getPoolStats();
+			leased += stats.getLeased();
+			pending += stats.getPending();
+			available += stats.getAvailable();
+			max += stats.getMax();
+		}
+		return new PoolStats(leased, pending, available, max);
+	}
+
+	/**
+	 * @return the current state of the connection pool of this client
+	 */
+	PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	private void close() {
+		try {
+			client.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Failed to close HTTP client", e);
+		}
+	}
+
+	private static final class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+		InstrumentedConnectionManager(Registry<ConnectionSocketFactory> registry) {
+			super(registry);
+		}
+
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+			ConnectionRequest request = super.requestConnection(route, state);
+			return new ConnectionRequest() {
+
+				@Override
+				public boolean cancel() {
+					return request.cancel();
+				}
+
+				@Override
+				public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+						throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+					long start = System.nanoTime();
+					try {
+						return request.get(timeout, timeUnit);
+					} finally {
+						KeycloakMetrics.get().getPoolLease().record(System.nanoTime() - start);
+					}
+				}
+			};
+		}
+	}
+
+	private static final class InstrumentedRequestExecutor extends HttpRequestExecutor {
+
+		@Override
+		public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+				throws IOException, HttpException {
+			long start = System.nanoTime();
+			try {
+				return super.execute(request, conn, context);
+			} finally {
+				KeycloakMetrics.get().getHttpRequest().record(System.nanoTime() - start);
+			}
+		}
+	}
+}
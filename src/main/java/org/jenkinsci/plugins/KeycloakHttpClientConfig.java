@@ -0,0 +1,181 @@
+package org.jenkinsci.plugins;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * Settings of the pooled HTTP client used for all calls to keycloak. They
+ * override the HTTP client settings of the keycloak JSON.
+ */
+public class KeycloakHttpClientConfig extends AbstractDescribableImpl<KeycloakHttpClientConfig> {
+
+	static final int DEFAULT_CONNECTION_POOL_SIZE = 64;
+	static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+	static final int DEFAULT_SOCKET_TIMEOUT = 10000;
+	static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 5000;
+	static final int DEFAULT_KEEP_ALIVE = 30000;
+
+	private int connectionPoolSize = DEFAULT_CONNECTION_POOL_SIZE;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+	private int connectionRequestTimeout = DEFAULT_CONNECTION_REQUEST_TIMEOUT;
+	private int keepAlive = DEFAULT_KEEP_ALIVE;
+
+	/**
+	 * Constructor, all settings start with their defaults
+	 */
+	@DataBoundConstructor
+	public KeycloakHttpClientConfig() {
+		super();
+	}
+
+	/**
+	 * @return the maximum number of connections to keycloak
+	 */
+	public int getConnectionPoolSize() {
+		return connectionPoolSize;
+	}
+
+	/**
+	 * @param connectionPoolSize the maximum number of connections to keycloak
+	 */
+	@DataBoundSetter
+	public void setConnectionPoolSize(int connectionPoolSize) {
+		this.connectionPoolSize = connectionPoolSize;
+	}
+
+	/**
+	 * @return the timeout in milliseconds for establishing a connection
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @param connectTimeout the timeout in milliseconds for establishing a
+	 *            connection
+	 */
+	@DataBoundSetter
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return the timeout in milliseconds for waiting for data from keycloak
+	 */
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	/**
+	 * @param socketTimeout the timeout in milliseconds for waiting for data from
+	 *            keycloak
+	 */
+	@DataBoundSetter
+	public void setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+	}
+
+	/**
+	 * @return the timeout in milliseconds for waiting for a free connection of
+	 *         the pool
+	 */
+	public int getConnectionRequestTimeout() {
+		return connectionRequestTimeout;
+	}
+
+	/**
+	 * @param connectionRequestTimeout the timeout in milliseconds for waiting for
+	 *            a free connection of the pool
+	 */
+	@DataBoundSetter
+	public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+		this.connectionRequestTimeout = connectionRequestTimeout;
+	}
+
+	/**
+	 * @return the maximum time in milliseconds an idle connection is kept open
+	 */
+	public int getKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * @param keepAlive the maximum time in milliseconds an idle connection is
+	 *            kept open
+	 */
+	@DataBoundSetter
+	public void setKeepAlive(int keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Descriptor definition for Jenkins
+	 */
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<KeycloakHttpClientConfig> {
+
+		@Override
+		@NonNull
+		public String getDisplayName() {
+			return "Keycloak HTTP client";
+		}
+
+		/**
+		 * Validate connectionPoolSize
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckConnectionPoolSize(@QueryParameter String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		/**
+		 * Validate connectTimeout
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckConnectTimeout(@QueryParameter String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		/**
+		 * Validate socketTimeout
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckSocketTimeout(@QueryParameter String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		/**
+		 * Validate connectionRequestTimeout
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckConnectionRequestTimeout(@QueryParameter String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		/**
+		 * Validate keepAlive
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckKeepAlive(@QueryParameter String value) {
+			return FormValidation.validatePositiveInteger(value);
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.jenkinsci.plugins;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.apache.http.pool.PoolStats;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+/**
+ * Publishes the {@link KeycloakMetrics} to the metrics plugin, if it is
+ * installed. Each operation gets a {@link Timer} per outcome, named
+ * {@code keycloak.<operation>.<outcome>}.
+ */
+@Restricted(NoExternalUse.class)
+@Extension(optional = true)
+public class KeycloakMetricProvider extends MetricProvider {
+
+	private static final String PREFIX = KeycloakMetrics.PREFIX;
+
+	private final Map<String, Timer> timers = new HashMap<>();
+
+	public KeycloakMetricProvider() {
+		for (String name : KeycloakMetrics.get().getTimerNames()) {
+			timers.put(name, new Timer());
+		}
+		KeycloakMetrics.setListener((name, nanos) -> {
+			Timer timer = timers.get(name);
+			if (timer != null) {
+				timer.update(nanos, TimeUnit.NANOSECONDS);
+			}
+		});
+	}
+
+	@NonNull
+	@Override
+	public MetricSet getMetricSet() {
+		KeycloakMetrics metrics = KeycloakMetrics.get();
+		Map<String, Metric> result = new HashMap<>(timers);
+		result.put(PREFIX + "admission.queued", (Gauge<Integer>) metrics::getAdmissionQueued);
+		result.put(PREFIX + "admission.active", (Gauge<Integer>) metrics::getAdmissionActive);
+		result.put(PREFIX + "admission.rejected", (Gauge<Long>) metrics::getAdmissionRejected);
+		addPoolGauge(result, "leased", PoolStats::getLeased);
+		addPoolGauge(result, "available", PoolStats::getAvailable);
+		addPoolGauge(result, "pending", PoolStats::getPending);
+		addPoolGauge(result, "max", PoolStats::getMax);
+		return () -> result;
+	}
+
+	private static void addPoolGauge(Map<String, Metric> result, String name, ToLongFunction<PoolStats> value) {
+		result.put(PREFIX + "http.pool." + name, (Gauge<Long>) () -> {
+			PoolStats stats = KeycloakMetrics.get().getPoolStats();
+			return stats == null ? 0L : value.applyAsLong(stats);
+		});
+	}
+}
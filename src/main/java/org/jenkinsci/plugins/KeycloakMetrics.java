@@ -0,0 +1,328 @@
+package org.jenkinsci.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.pool.PoolStats;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Metrics of the communication with keycloak, shown on the status page of the
+ * security realm. If the metrics plugin is installed, every duration is also
+ * passed to the {@link Listener} set by {@link KeycloakMetricProvider}, which
+ * keeps the percentiles.
+ */
+@Restricted(NoExternalUse.class)
+public final class KeycloakMetrics {
+
+	/**
+	 * The operations talking to keycloak.
+	 */
+	public enum Operation {
+		/** redirect of the user to the keycloak login */
+		COMMENCE_LOGIN("commenceLogin"),
+		/** exchange of the authorization code for tokens */
+		CODE_EXCHANGE("codeExchange"),
+		/** refresh of the tokens */
+		REFRESH("refresh"),
+		/** logout at keycloak */
+		LOGOUT("logout"),
+		/** lookup of a user which is not logged in */
+		USER_LOOKUP("userLookup");
+
+		private final String metricName;
+
+		Operation(String metricName) {
+			this.metricName = metricName;
+		}
+
+		/**
+		 * @return the name of the operation in metric names
+		 */
+		public String getMetricName() {
+			return metricName;
+		}
+	}
+
+	/**
+	 * The outcomes an operation is counted by.
+	 */
+	public static final List<String> OUTCOMES = List.of("success", "400", "401", "403", "4xx", "5xx", "error", "rejected");
+
+	static final String PREFIX = "keycloak.";
+
+	private static final KeycloakMetrics INSTANCE = new KeycloakMetrics();
+
+	private static volatile Listener listener;
+
+	private final Timer poolLease = new Timer(PREFIX + "http.poolLease");
+	private final Timer httpRequest = new Timer(PREFIX + "http.request");
+	private final Timer admissionWait = new Timer(PREFIX + "admission.wait");
+	private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+
+	private KeycloakMetrics() {
+		for (Operation operation : Operation.values()) {
+			operations.put(operation, new OperationMetrics(PREFIX + operation.getMetricName()));
+		}
+	}
+
+	/**
+	 * Receives every recorded duration.
+	 */
+	interface Listener {
+
+		/**
+		 * @param name the name of the timer, one of {@link KeycloakMetrics#getTimerNames()}
+		 * @param nanos the duration in nanoseconds
+		 */
+		void recorded(String name, long nanos);
+	}
+
+	static void setListener(Listener listener) {
+		KeycloakMetrics.listener = listener;
+	}
+
+	/**
+	 * @return the metrics of this Jenkins instance
+	 */
+	public static KeycloakMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records a finished operation.
+	 *
+	 * @param operation the operation
+	 * @param startNanos the {@link System#nanoTime()} the operation started at
+	 * @param failure the failure of the operation, null if it succeeded
+	 */
+	void record(Operation operation, long startNanos, Throwable failure) {
+		operations.get(operation).record(System.nanoTime() - startNanos, outcome(failure));
+	}
+
+	static String outcome(Throwable failure) {
+		if (failure == null) {
+			return "success";
+		}
+		if (failure instanceof KeycloakCircuitBreaker.OpenException
+				|| failure instanceof KeycloakAdmission.RejectedException) {
+			// not sent to keycloak at all
+			return "rejected";
+		}
+		if (failure instanceof HttpFailure) {
+			int status = ((HttpFailure) failure).getStatus();
+			if (status == 400 || status == 401 || status == 403) {
+				return String.valueOf(status);
+			}
+			if (status >= 400 && status < 500) {
+				return "4xx";
+			}
+			if (status >= 500) {
+				return "5xx";
+			}
+		}
+		return "error";
+	}
+
+	/**
+	 * @return the outcomes an operation is counted by
+	 */
+	public List<String> getOutcomes() {
+		return OUTCOMES;
+	}
+
+	/**
+	 * @return the names of all timers, one per operation and outcome plus the
+	 *         HTTP and admission timers
+	 */
+	List<String> getTimerNames() {
+		List<String> names = new ArrayList<>();
+		for (OperationMetrics operation : operations.values()) {
+			names.addAll(operation.timerNames.values());
+		}
+		names.add(poolLease.name);
+		names.add(httpRequest.name);
+		names.add(admissionWait.name);
+		return names;
+	}
+
+	/**
+	 * @return the metrics of all operations
+	 */
+	public Map<Operation, OperationMetrics> getOperations() {
+		return Collections.unmodifiableMap(operations);
+	}
+
+	/**
+	 * @return the time requests waited for a pooled connection to keycloak
+	 */
+	public Timer getPoolLease() {
+		return poolLease;
+	}
+
+	/**
+	 * @return the time from sending a request to keycloak until its response
+	 *         headers arrived
+	 */
+	public Timer getHttpRequest() {
+		return httpRequest;
+	}
+
+	/**
+	 * @return the time code exchanges and refreshes waited for a slot to call
+	 *         keycloak
+	 */
+	public Timer getAdmissionWait() {
+		return admissionWait;
+	}
+
+	/**
+	 * @return the number of code exchanges and refreshes waiting for a slot
+	 */
+	public int getAdmissionQueued() {
+		return KeycloakAdmission.get().getQueued();
+	}
+
+	/**
+	 * @return the number of code exchanges and refreshes talking to keycloak
+	 */
+	public int getAdmissionActive() {
+		return KeycloakAdmission.get().getActive();
+	}
+
+	/**
+	 * @return the number of code exchanges and refreshes rejected because too
+	 *         many were in progress
+	 */
+	public long getAdmissionRejected() {
+		return KeycloakAdmission.get().getRejected();
+	}
+
+	/**
+	 * @return the current state of the connection pools, or null if the plugin
+	 *         does not manage the HTTP client
+	 */
+	public PoolStats getPoolStats() {
+		return KeycloakHttpClient.getTotalPoolStats();
+	}
+
+	/**
+	 * @param millis a duration in milliseconds
+	 * @return the duration rounded for display
+	 */
+	public String format(double millis) {
+		return String.format(Locale.ROOT, "%.1f", millis);
+	}
+
+	/**
+	 * The durations and outcomes of one operation.
+	 */
+	public static final class OperationMetrics {
+
+		private final Timer timer;
+		private final Map<String, LongAdder> outcomes = new LinkedHashMap<>();
+		private final Map<String, String> timerNames = new LinkedHashMap<>();
+
+		OperationMetrics(String name) {
+			// the summary of all outcomes is only shown on the status page
+			timer = new Timer(null);
+			for (String outcome : OUTCOMES) {
+				outcomes.put(outcome, new LongAdder());
+				timerNames.put(outcome, name + "." + outcome);
+			}
+		}
+
+		void record(long nanos, String outcome) {
+			timer.record(nanos);
+			outcomes.get(outcome).increment();
+			notify(timerNames.get(outcome), nanos);
+		}
+
+		/**
+		 * @return the durations of the operation
+		 */
+		public Timer getTimer() {
+			return timer;
+		}
+
+		/**
+		 * @param outcome one of {@link KeycloakMetrics#OUTCOMES}
+		 * @return the number of operations with the outcome
+		 */
+		public long getCount(String outcome) {
+			return outcomes.get(outcome).sum();
+		}
+
+		/**
+		 * @return the number of failed operations
+		 */
+		public long getFailures() {
+			return timer.getCount() - getCount("success");
+		}
+	}
+
+	private static void notify(String name, long nanos) {
+		Listener current = listener;
+		if (current != null && name != null) {
+			current.recorded(name, nanos);
+		}
+	}
+
+	/**
+	 * Sums up the durations of an operation for the status page.
+	 */
+	public static final class Timer {
+
+		private final String name;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+
+		Timer(String name) {
+			this.name = name;
+		}
+
+		void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+			notify(name, nanos);
+		}
+
+		/**
+		 * @return the number of recorded operations
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * @return the mean duration in milliseconds
+		 */
+		public double getMeanMillis() {
+			long n = count.sum();
+			return n == 0 ? 0d : toMillis(totalNanos.sum()) / n;
+		}
+
+		/**
+		 * @return the longest duration in milliseconds
+		 */
+		public double getMaxMillis() {
+			return toMillis(maxNanos.get());
+		}
+
+		private static double toMillis(long nanos) {
+			return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins;
+
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event of a login, token refresh or logout. The event
+ * is recorded on the thread talking to keycloak, so it lines up with the
+ * socket events of the JDK in the same recording. Without a recording only
+ * the cost of an unused object remains.
+ */
+@Name("org.jenkinsci.plugins.keycloak.Operation")
+@Label("Keycloak Operation")
+@Category({ "Jenkins", "Keycloak" })
+@Description("A login, token refresh or logout of the keycloak security realm")
+@StackTrace(false)
+final class KeycloakOperationEvent extends Event {
+
+	@Label("Operation")
+	String operation;
+
+	@Label("User")
+	String user;
+
+	@Label("Tenant")
+	String tenant;
+
+	@Label("Outcome")
+	@Description("success, the HTTP status class of an error answer, error or rejected")
+	String outcome;
+
+	@Label("HTTP Status")
+	@Description("Status of the keycloak answer, 0 if keycloak did not answer")
+	int status;
+
+	/**
+	 * Starts timing an operation.
+	 *
+	 * @return the event, to be passed to {@link #end(String, String, String, Throwable)}
+	 */
+	static KeycloakOperationEvent start() {
+		KeycloakOperationEvent event = new KeycloakOperationEvent();
+		event.begin();
+		return event;
+	}
+
+	/**
+	 * Ends the operation and commits the event if it is recorded.
+	 *
+	 * @param operation the name of the operation
+	 * @param user the user, may be null
+	 * @param tenant the tenant, null for the keycloak JSON of the realm
+	 * @param failure the failure of the operation, null if it succeeded
+	 */
+	void end(String operation, String user, String tenant, Throwable failure) {
+		end();
+		if (shouldCommit()) {
+			this.operation = operation;
+			this.user = user;
+			this.tenant = tenant;
+			this.outcome = KeycloakMetrics.outcome(failure);
+			this.status = status(failure);
+			commit();
+		}
+	}
+
+	/**
+	 * @param failure the failure of a call to keycloak, null if it succeeded
+	 * @return the HTTP status of the keycloak answer, 0 if keycloak did not
+	 *         answer
+	 */
+	static int status(Throwable failure) {
+		if (failure == null) {
+			return 200;
+		}
+		for (Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof HttpFailure) {
+				return ((HttpFailure) t).getStatus();
+			}
+		}
+		return 0;
+	}
+}
@@ -28,14 +28,28 @@ package org.jenkinsci.plugins;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.security.cert.X509Certificate;
+import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -43,24 +57,30 @@ import jenkins.security.SecurityListener;
 import org.apache.commons.lang.StringUtils;
 import org.keycloak.KeycloakSecurityContext;
 import org.keycloak.OAuth2Constants;
+import org.keycloak.TokenVerifier;
 import org.keycloak.adapters.AdapterDeploymentContext;
 import org.keycloak.adapters.KeycloakDeployment;
-import org.keycloak.adapters.KeycloakDeploymentBuilder;
 import org.keycloak.adapters.OIDCHttpFacade;
 import org.keycloak.adapters.ServerRequest;
 import org.keycloak.adapters.ServerRequest.HttpFailure;
 import org.keycloak.adapters.rotation.AdapterTokenVerifier;
 import org.keycloak.adapters.spi.AuthenticationError;
 import org.keycloak.adapters.spi.LogoutError;
+import org.keycloak.common.VerificationException;
 import org.keycloak.common.util.KeycloakUriBuilder;
+import org.keycloak.enums.RelativeUrlsUsed;
 import org.keycloak.jose.jws.JWSInput;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.AccessTokenResponse;
 import org.keycloak.representations.IDToken;
+import org.keycloak.representations.LogoutToken;
 import org.keycloak.representations.adapters.config.AdapterConfig;
 import org.keycloak.util.JsonSerialization;
 import org.keycloak.util.TokenUtil;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.Header;
 import org.kohsuke.stapler.HttpRedirect;
 import org.kohsuke.stapler.HttpResponse;
@@ -68,20 +88,36 @@ import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.AuthenticationServiceException;
 
+import hudson.BulkChange;
+import hudson.Util;
+import hudson.XmlFile;
 import hudson.Extension;
+import hudson.model.Cause;
 import hudson.model.Descriptor;
+import hudson.model.Queue;
+import hudson.model.Saveable;
 import hudson.model.User;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.QueueListener;
+import hudson.security.GroupDetails;
 import hudson.security.SecurityRealm;
+import hudson.security.UserMayOrMayNotExistException2;
+import hudson.security.csrf.CrumbExclusion;
 import hudson.tasks.Mailer;
 import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 
 /**
  *
@@ -112,14 +148,44 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 
 	private static final String REFERER_ATTRIBUTE = KeycloakSecurityRealm.class.getName() + ".referer";
 
-	private transient KeycloakDeployment keycloakDeployment;
+	private static final String BACKCHANNEL_LOGOUT_URL = "securityRealm/backchannelLogout";
+
+	private static final String LOGOUT_TOKEN = "logout_token";
+
+	private static final String BACKCHANNEL_LOGOUT_EVENT = "http://schemas.openid.net/event/backchannel-logout";
+
+	/**
+	 * The URL the cached avatars of the users are served from
+	 */
+	static final String AVATAR_URL = "securityRealm/avatar/";
+
+	/**
+	 * The key of the deployment built from the keycloak JSON of the realm
+	 */
+	static final String DEFAULT_TENANT = "";
+
+	// the deployments built so far by tenant, replaced as a whole and read without locking
+	private transient volatile Map<String, TenantDeployment> deployments;
 
 	private transient RefreshFilter filter;
 
+	// compiled from keycloakBypassPaths on first use
+	private transient volatile BypassRules bypassRules;
+
+	private transient volatile KeycloakUserLookup userLookup;
+
 	private String keycloakJson = "";
 	private String keycloakIdp = "";
 	private boolean keycloakValidate = false;
 	private boolean keycloakRespectAccessTokenTimeout = true;
+	private boolean keycloakValidateTokenLocally = false;
+	private boolean keycloakAvatarCache = false;
+	private boolean keycloakBearerAuthentication = false;
+	private boolean keycloakUserLookup = false;
+	private boolean keycloakPersistSessions = false;
+	private String keycloakBypassPaths;
+	private KeycloakHttpClientConfig httpClient;
+	private List<KeycloakTenant> tenants;
 
 	/**
 	 * Constructor
@@ -181,6 +247,21 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	 */
 	public HttpResponse doCommenceLogin(StaplerRequest request, StaplerResponse response,
 			@Header("Referer") final String referer) throws IOException {
+		long start = System.nanoTime();
+		KeycloakOperationEvent event = KeycloakOperationEvent.start();
+		Throwable failure = null;
+		try {
+			return commenceLogin(request, referer);
+		} catch (IOException | RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			KeycloakMetrics.get().record(KeycloakMetrics.Operation.COMMENCE_LOGIN, start, failure);
+			event.end(KeycloakMetrics.Operation.COMMENCE_LOGIN.getMetricName(), null, resolveTenant(request), failure);
+		}
+	}
+
+	private HttpResponse commenceLogin(StaplerRequest request, String referer) throws IOException {
 		request.getSession().setAttribute(REFERER_ATTRIBUTE, referer);
 
 		String scopeParam = TokenUtil.attachOIDCScope(null);
@@ -188,8 +269,9 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 
 		String state = UUID.randomUUID().toString();
 
-        KeycloakUriBuilder builder = getKeycloakDeployment().getAuthUrl().clone()
-				.queryParam(OAuth2Constants.CLIENT_ID, getKeycloakDeployment().getResourceName())
+		KeycloakDeployment deployment = resolveDeployment(request);
+        KeycloakUriBuilder builder = deployment.getAuthUrl().clone()
+				.queryParam(OAuth2Constants.CLIENT_ID, deployment.getResourceName())
 				.queryParam(OAuth2Constants.REDIRECT_URI, redirect)
 				.queryParam(OAuth2Constants.STATE, state)
 				.queryParam(OAuth2Constants.RESPONSE_TYPE, OAuth2Constants.CODE)
@@ -221,9 +303,34 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 		return redirect;
 	}
 
-	private KeycloakDeployment resolveDeployment(KeycloakDeployment baseDeployment, HttpServletRequest request) {
+	/**
+	 * Returns the tenant serving the host of a request.
+	 * 
+	 * @param request
+	 *            the request
+	 * @return the name of the tenant, or null if the keycloak JSON of the realm
+	 *         is used
+	 */
+	String resolveTenant(HttpServletRequest request) {
+		if (tenants != null) {
+			String host = request.getServerName();
+			for (KeycloakTenant tenant : tenants) {
+				if (tenant.matches(host)) {
+					return tenant.getName();
+				}
+			}
+		}
+		return null;
+	}
+
+	private KeycloakDeployment resolveDeployment(HttpServletRequest request) throws IOException {
+		KeycloakDeployment deployment = getKeycloakDeployment(resolveTenant(request));
+		if (deployment.getRelativeUrls() == RelativeUrlsUsed.NEVER) {
+			// nothing depends on the request, the cached deployment is used as is
+			return deployment;
+		}
 		ServletFacade facade = new ServletFacade(request);
-		return new AdapterDeploymentContext(baseDeployment).resolveDeployment(facade);
+		return new AdapterDeploymentContext(deployment).resolveDeployment(facade);
 	}
 
 	/**
@@ -238,26 +345,45 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	@SuppressFBWarnings(value = "REC_CATCH_EXCEPTION", justification = "We want to catch all exceptions")
 	public HttpResponse doFinishLogin(StaplerRequest request) throws IOException {
 
+		KeycloakOperationEvent event = KeycloakOperationEvent.start();
 		String redirect = redirectUrl(request);
+		IDToken loggedIn = null;
+		KeycloakAuthentication loggedInAuth = null;
+		Throwable loginFailure = null;
 
 		try {
 			LOGGER.log(Level.FINE, "Code" + request.getParameter(OAuth2Constants.CODE));
 			LOGGER.log(Level.FINE, "Redirect" + redirect);
 
-			KeycloakDeployment resolvedDeployment = resolveDeployment(getKeycloakDeployment(), request);
+			String tenant = resolveTenant(request);
+			KeycloakDeployment resolvedDeployment = resolveDeployment(request);
 
 			LOGGER.log(Level.FINE, "TokenURL" + resolvedDeployment.getTokenUrl());
 
 			checkState(request.getParameter(OAuth2Constants.STATE), request.getSession().getAttribute(OAuth2Constants.STATE));
 
-			AccessTokenResponse tokenResponse = ServerRequest.invokeAccessCodeToToken(resolvedDeployment,
-					request.getParameter(OAuth2Constants.CODE), redirect, null);
+			String code = request.getParameter(OAuth2Constants.CODE);
+			AccessTokenResponse tokenResponse;
+			long start = System.nanoTime();
+			KeycloakOperationEvent exchange = KeycloakOperationEvent.start();
+			Throwable failure = null;
+			try {
+				// a slow keycloak is bounded by the admission limit and the timeouts of the HTTP client
+				KeycloakCircuitBreaker breaker = KeycloakCircuitBreaker.get(getKeycloakDeployment(tenant));
+				tokenResponse = KeycloakAdmission.get().call(() -> breaker
+						.call(() -> ServerRequest.invokeAccessCodeToToken(resolvedDeployment, code, redirect, null)));
+			} catch (IOException | HttpFailure | RuntimeException | Error e) {
+				failure = e;
+				throw e;
+			} finally {
+				KeycloakMetrics.get().record(KeycloakMetrics.Operation.CODE_EXCHANGE, start, failure);
+				exchange.end(KeycloakMetrics.Operation.CODE_EXCHANGE.getMetricName(), null, tenant, failure);
+			}
 
-			String tokenString = tokenResponse.getToken();
 			String idTokenString = tokenResponse.getIdToken();
 			String refreshToken = tokenResponse.getRefreshToken();
 
-			AccessToken token = AdapterTokenVerifier.verifyToken(tokenString, resolvedDeployment);
+			AccessToken token = AdapterTokenVerifier.verifyToken(tokenResponse.getToken(), resolvedDeployment);
 			if (idTokenString != null) {
 				JWSInput input = new JWSInput(idTokenString);
 
@@ -265,24 +391,17 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 
 				String resourceName = resolvedDeployment.getResourceName();
 				KeycloakAuthentication auth = new KeycloakAuthentication(idToken, token, refreshToken, tokenResponse, resourceName);
+				auth.setTenant(tenant);
 				SecurityContextHolder.getContext().setAuthentication(auth);
+				if (checkKeycloakOnEachRequest() && respectAccessTokenTimeout()) {
+					TokenRefreshScheduler.register(auth);
+				}
+				loggedIn = idToken;
+				loggedInAuth = auth;
 
 				User currentUser = User.current();
 				if (currentUser != null) {
-					currentUser.setFullName(idToken.getPreferredUsername());
-
-					if (!currentUser.getProperty(Mailer.UserProperty.class).hasExplicitlyConfiguredAddress()) {
-						currentUser.addProperty(new Mailer.UserProperty(idToken.getEmail()));
-					}
-
-					// Set picture/avatar if present
-					String avatarUrl = idToken.getPicture();
-					if (avatarUrl != null) {
-						LOGGER.finest("Avatar url is: " + avatarUrl);
-						KeycloakAvatarProperty.AvatarImage avatarImage = new KeycloakAvatarProperty.AvatarImage(avatarUrl);
-						KeycloakAvatarProperty keycloakAvatarProperty = new KeycloakAvatarProperty(avatarImage);
-						currentUser.addProperty(keycloakAvatarProperty);
-					}
+					updateUser(currentUser, idToken);
 
 					KeycloakUserDetails userDetails = new KeycloakUserDetails(
 							idToken.getPreferredUsername(), auth.getAuthorities()
@@ -291,6 +410,10 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 				}
 			}
 
+		} catch (KeycloakAdmission.RejectedException e) {
+			LOGGER.log(Level.WARNING, "Login rejected, too many logins in progress");
+			event.end("finishLogin", null, resolveTenant(request), e);
+			return retryLater("Too many logins in progress, please try again later.");
 		} catch (Exception e) {
 			HttpFailure hf = null;
 			LOGGER.log(Level.SEVERE, "Authentication Exception ", e);
@@ -305,9 +428,10 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 				}
 			}
 			if (hf != null) {
-				LOGGER.log(Level.SEVERE, "Failure Message" + ((HttpFailure) e).getError());
-				LOGGER.log(Level.SEVERE, "Failure HTTP Status" + ((HttpFailure) e).getStatus());
+				LOGGER.log(Level.SEVERE, "Failure Message" + hf.getError());
+				LOGGER.log(Level.SEVERE, "Failure HTTP Status" + hf.getStatus());
 			}
+			loginFailure = hf != null ? hf : e;
 
 		}
 
@@ -315,13 +439,253 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 			// prevent session fixation ( SECURITY-2987 )
 			request.changeSessionId();
 		}
+		if (loggedIn != null) {
+			// allows the back-channel logout to find the session
+			KeycloakSessionIndex.get().register(loggedIn.getSessionId(), loggedIn.getSubject(), request.getSession());
+		}
+		Cookie sessionCookie = null;
+		if (loggedIn != null && isKeycloakPersistSessions()) {
+			try {
+				String key = KeycloakSessionStore.get().add(loggedInAuth, loggedIn.getSessionId(), loggedIn.getSubject());
+				sessionCookie = KeycloakSessionStore.cookie(request, key, KeycloakSessionStore.COOKIE_MAX_AGE);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to store the keycloak session of " + loggedInAuth.getName(), e);
+			}
+		}
+
+		event.end("finishLogin", loggedIn != null ? loggedIn.getPreferredUsername() : null, resolveTenant(request),
+				loginFailure);
 
 		String referer = (String) request.getSession().getAttribute(REFERER_ATTRIBUTE);
 		if (referer != null) {
 			LOGGER.log(Level.FINEST, "Redirecting to " + referer);
-			return HttpResponses.redirectTo(referer);
+			return withCookie(HttpResponses.redirectTo(referer), sessionCookie);
+		}
+		return withCookie(HttpResponses.redirectToContextRoot(), sessionCookie);
+	}
+
+	/**
+	 * A cheap answer to a request rejected by the admission control, the
+	 * browser is not sent around the login redirects again.
+	 *
+	 * @param message the message shown to the user
+	 * @return {@link HttpResponse} a 503 response with a Retry-After header
+	 */
+	static HttpResponse retryLater(String message) {
+		return (req, rsp, node) -> {
+			rsp.setHeader("Retry-After", String.valueOf(KeycloakAdmission.RETRY_AFTER));
+			rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+		};
+	}
+
+	private static HttpResponse withCookie(HttpResponse response, Cookie cookie) {
+		if (cookie == null) {
+			return response;
+		}
+		return (req, rsp, node) -> {
+			rsp.addCookie(cookie);
+			response.generateResponse(req, rsp, node);
+		};
+	}
+
+	/**
+	 * OpenID Connect back-channel logout: keycloak posts a signed logout token
+	 * for a user session which was ended in keycloak, all Jenkins sessions of it
+	 * are invalidated.
+	 * 
+	 * @param request
+	 *            the keycloak request
+	 * @return {@link HttpResponse} the response
+	 * @throws IOException
+	 */
+	@RequirePOST
+	public HttpResponse doBackchannelLogout(StaplerRequest request) throws IOException {
+		String logoutTokenString = request.getParameter(LOGOUT_TOKEN);
+		if (StringUtils.isEmpty(logoutTokenString)) {
+			return HttpResponses.errorWithoutStack(HttpServletResponse.SC_BAD_REQUEST, "logout_token is missing");
+		}
+		LogoutToken logoutToken;
+		try {
+			logoutToken = verifyLogoutToken(logoutTokenString, getKeycloakDeployment(resolveTenant(request)));
+		} catch (VerificationException e) {
+			LOGGER.log(Level.WARNING, "Back-channel logout rejected, logout token is not valid: " + e.getMessage());
+			return HttpResponses.errorWithoutStack(HttpServletResponse.SC_BAD_REQUEST, "logout_token is not valid");
+		}
+		int invalidated;
+		if (logoutToken.getSid() != null) {
+			invalidated = KeycloakSessionIndex.get().invalidateSessionId(logoutToken.getSid());
+		} else {
+			invalidated = KeycloakSessionIndex.get().invalidateSubject(logoutToken.getSubject());
+		}
+		KeycloakSessionStore store = KeycloakSessionStore.getIfLoaded();
+		if (store != null) {
+			// the stored sessions would be restored after a restart otherwise
+			if (logoutToken.getSid() != null) {
+				store.removeSessionId(logoutToken.getSid());
+			} else {
+				store.removeSubject(logoutToken.getSubject());
+			}
+		}
+		LOGGER.log(Level.FINE, "Back-channel logout of session {0} subject {1} invalidated {2} sessions",
+				new Object[] { logoutToken.getSid(), logoutToken.getSubject(), invalidated });
+		return HttpResponses.ok();
+	}
+
+	/**
+	 * Updates the full name, e-mail address and avatar of a user from the id
+	 * token. The configuration of the user is saved once, and only if one of
+	 * them changed.
+	 * 
+	 * @param user
+	 *            the logged in user
+	 * @param idToken
+	 *            the id token of the login
+	 * @return true if the user was changed and saved
+	 * @throws IOException
+	 *             if the user could not be saved
+	 */
+	static boolean updateUser(User user, IDToken idToken) throws IOException {
+		try (BulkChange bc = new BulkChange(user)) {
+			boolean changed = false;
+			String fullName = idToken.getPreferredUsername();
+			if (!StringUtils.equals(fullName, user.getFullName())) {
+				user.setFullName(fullName);
+				changed = true;
+			}
+
+			Mailer.UserProperty mail = user.getProperty(Mailer.UserProperty.class);
+			if ((mail == null || !mail.hasExplicitlyConfiguredAddress()) && idToken.getEmail() != null) {
+				user.addProperty(new Mailer.UserProperty(idToken.getEmail()));
+				changed = true;
+			}
+
+			// Set picture/avatar if present
+			String avatarUrl = idToken.getPicture();
+			if (avatarUrl != null) {
+				LOGGER.finest("Avatar url is: " + avatarUrl);
+				KeycloakAvatarProperty avatar = user.getProperty(KeycloakAvatarProperty.class);
+				if (avatar == null || !avatarUrl.equals(avatar.getAvatarUrl())) {
+					KeycloakAvatarProperty.AvatarImage avatarImage = new KeycloakAvatarProperty.AvatarImage(avatarUrl);
+					user.addProperty(new KeycloakAvatarProperty(avatarImage));
+					changed = true;
+				}
+			}
+
+			if (changed) {
+				bc.commit();
+			}
+			return changed;
+		}
+	}
+
+	/**
+	 * Serves the avatar of a user from the avatar cache, resized to the
+	 * requested <code>size</code> (<code>&lt;width&gt;x&lt;height&gt;</code>).
+	 * Without the cache, or if the image may not or cannot be fetched, the
+	 * avatar is not found. The browser is never redirected to the picture URL,
+	 * which is chosen by the user.
+	 * 
+	 * @param request
+	 *            the Jenkins request, the rest of the path is the user id
+	 * @param response
+	 *            the Jenkins response
+	 * @throws IOException
+	 */
+	public void doAvatar(StaplerRequest request, StaplerResponse response) throws IOException {
+		Jenkins.get().checkPermission(Jenkins.READ);
+		String id = StringUtils.removeStart(request.getRestOfPath(), "/");
+		User user = StringUtils.isEmpty(id) ? null : User.getById(id, false);
+		KeycloakAvatarProperty avatar = user == null ? null : user.getProperty(KeycloakAvatarProperty.class);
+		if (avatar == null || !avatar.isHasAvatar()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String url = avatar.getAvatarUrl();
+		int[] size = parseAvatarSize(request.getParameter("size"));
+		if (!isKeycloakAvatarCache() || size == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (!KeycloakAvatarCache.isAllowed(url, getKeycloakHosts())) {
+			LOGGER.log(Level.FINE, "Avatar of {0} is not fetched from {1}, the host is not allowed", new Object[] { id, url });
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String etag = "\"" + KeycloakAvatarCache.key(url, size[0], size[1]) + "\"";
+		if (etag.equals(request.getHeader("If-None-Match"))) {
+			response.setHeader("ETag", etag);
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		Path file;
+		try {
+			file = KeycloakAvatarCache.get().get(url, size[0], size[1]);
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Avatar of " + id + " could not be cached", e);
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		response.setContentType("image/png");
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", "private, max-age=86400");
+		response.setContentLengthLong(Files.size(file));
+		Files.copy(file, response.getOutputStream());
+	}
+
+	/**
+	 * @return the hosts of the keycloak servers of the realm and its tenants
+	 */
+	private Set<String> getKeycloakHosts() throws IOException {
+		Set<String> hosts = new HashSet<>();
+		for (String key : getTenantKeys()) {
+			String host = KeycloakUriBuilder.fromUri(getKeycloakDeployment(key).getAuthServerBaseUrl()).getHost();
+			if (host != null) {
+				hosts.add(host.toLowerCase(Locale.ROOT));
+			}
+		}
+		return hosts;
+	}
+
+	private static int[] parseAvatarSize(String size) {
+		String[] parts = StringUtils.split(StringUtils.defaultString(size), 'x');
+		if (parts.length != 2) {
+			return null;
+		}
+		try {
+			int width = Integer.parseInt(parts[0]);
+			int height = Integer.parseInt(parts[1]);
+			if (width <= 0 || height <= 0 || width > KeycloakAvatarCache.MAX_SIZE || height > KeycloakAvatarCache.MAX_SIZE) {
+				return null;
+			}
+			return new int[] { width, height };
+		} catch (NumberFormatException e) {
+			return null;
 		}
-		return HttpResponses.redirectToContextRoot();
+	}
+
+	static LogoutToken verifyLogoutToken(String logoutTokenString, KeycloakDeployment deployment)
+			throws VerificationException {
+		TokenVerifier<LogoutToken> verifier = TokenVerifier.create(logoutTokenString, LogoutToken.class);
+		String kid = verifier.getHeader().getKeyId();
+		PublicKey publicKey = deployment.getPublicKeyLocator().getPublicKey(kid, deployment);
+		if (publicKey == null) {
+			throw new VerificationException("No public key found for kid " + kid);
+		}
+		LogoutToken logoutToken = verifier.publicKey(publicKey)
+				.withChecks(new TokenVerifier.RealmUrlCheck(deployment.getRealmInfoUrl()),
+						new TokenVerifier.AudienceCheck(deployment.getResourceName()), TokenVerifier.IS_ACTIVE)
+				.verify().getToken();
+		if (logoutToken.getEvents() == null || !logoutToken.getEvents().containsKey(BACKCHANNEL_LOGOUT_EVENT)) {
+			throw new VerificationException("Logout token does not contain the back-channel logout event");
+		}
+		if (logoutToken.getSid() == null && logoutToken.getSubject() == null) {
+			throw new VerificationException("Logout token contains neither sid nor sub");
+		}
+		return logoutToken;
 	}
 
 	private void checkState(String queryState, Object sessionStateObj) {
@@ -362,6 +726,65 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 		return sc;
 	}
 
+	/**
+	 * Looks up a user which is not logged in through the admin REST API of
+	 * keycloak, e.g. for the authentication of queue items or
+	 * {@link User#impersonate2()}.
+	 */
+	@Override
+	public UserDetails loadUserByUsername2(String username) throws UsernameNotFoundException {
+		if (!isKeycloakUserLookup()) {
+			throw new UserMayOrMayNotExistException2("Keycloak users can only be looked up if the user lookup is enabled");
+		}
+		try {
+			return getUserLookup().loadUser(getKeycloakDeployment(), username)
+					.orElseThrow(() -> new UsernameNotFoundException("No keycloak user " + username));
+		} catch (IOException | HttpFailure e) {
+			LOGGER.log(Level.FINE, "Lookup of user " + username + " failed", e);
+			throw new UserMayOrMayNotExistException2("Failed to look up keycloak user " + username, e);
+		}
+	}
+
+	/**
+	 * Groups are the realm roles and the roles of the client, like the
+	 * authorities of a logged in user.
+	 */
+	@Override
+	public GroupDetails loadGroupByGroupname2(String groupname, boolean fetchMembers)
+			throws UsernameNotFoundException {
+		if (!isKeycloakUserLookup()) {
+			throw new UserMayOrMayNotExistException2("Keycloak roles can only be looked up if the user lookup is enabled");
+		}
+		try {
+			if (!getUserLookup().roleExists(getKeycloakDeployment(), groupname)) {
+				throw new UsernameNotFoundException("No keycloak role " + groupname);
+			}
+		} catch (IOException | HttpFailure e) {
+			LOGGER.log(Level.FINE, "Lookup of role " + groupname + " failed", e);
+			throw new UserMayOrMayNotExistException2("Failed to look up keycloak role " + groupname, e);
+		}
+		return new GroupDetails() {
+			@Override
+			public String getName() {
+				return groupname;
+			}
+		};
+	}
+
+	KeycloakUserLookup getUserLookup() {
+		KeycloakUserLookup lookup = userLookup;
+		if (lookup == null) {
+			synchronized (this) {
+				lookup = userLookup;
+				if (lookup == null) {
+					lookup = new KeycloakUserLookup();
+					userLookup = lookup;
+				}
+			}
+		}
+		return lookup;
+	}
+
 	@Override
 	public String getLoginUrl() {
 		return JENKINS_LOGIN_URL;
@@ -370,18 +793,65 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	@Override
 	public void doLogout(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
 		final Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-		if (authentication instanceof KeycloakAuthentication) {
+		// requests authenticated by a bearer token have no keycloak session to end
+		if (authentication instanceof KeycloakAuthentication
+				&& ((KeycloakAuthentication) authentication).getRefreshToken() != null) {
 			KeycloakAuthentication keycloakAuthentication = (KeycloakAuthentication) authentication;
+			long start = System.nanoTime();
+			KeycloakOperationEvent event = KeycloakOperationEvent.start();
+			Throwable failure = null;
 			try {
-				ServerRequest.invokeLogout(getKeycloakDeployment(), keycloakAuthentication.getRefreshToken());
+				KeycloakDeployment deployment = getKeycloakDeployment(keycloakAuthentication.getTenant());
+				KeycloakCircuitBreaker.get(deployment).call(() -> {
+					ServerRequest.invokeLogout(deployment, keycloakAuthentication.getRefreshToken());
+					return null;
+				});
 			} catch (HttpFailure e) {
+				failure = e;
 				LOGGER.log(Level.SEVERE, "Logout Exception ", e);
+			} catch (KeycloakCircuitBreaker.OpenException e) {
+				// the session ends in Jenkins anyway, keycloak expires it later
+				failure = e;
+				LOGGER.log(Level.WARNING, "Logout at keycloak skipped, keycloak is unavailable");
+			} catch (IOException | RuntimeException e) {
+				failure = e;
+				throw e;
+			} finally {
+				KeycloakMetrics.get().record(KeycloakMetrics.Operation.LOGOUT, start, failure);
+				event.end(KeycloakMetrics.Operation.LOGOUT.getMetricName(), keycloakAuthentication.getName(),
+						keycloakAuthentication.getTenant(), failure);
 			}
 		}
-		req.getSession().setAttribute(AUTH_REQUESTED, Boolean.FALSE);
+		removeStoredSession(req, rsp, authentication);
+		HttpSession session = req.getSession(false);
+		if (session != null) {
+			session.setAttribute(AUTH_REQUESTED, Boolean.FALSE);
+		}
 		super.doLogout(req, rsp);
 	}
 
+	/**
+	 * Removes the stored session of the user logging out, and its cookie.
+	 */
+	private static void removeStoredSession(StaplerRequest req, StaplerResponse rsp, Authentication authentication)
+			throws IOException {
+		String cookie = KeycloakSessionStore.getCookie(req);
+		String persistentSession = authentication instanceof KeycloakAuthentication
+				? ((KeycloakAuthentication) authentication).getPersistentSession()
+				: null;
+		if (cookie == null && persistentSession == null) {
+			return;
+		}
+		KeycloakSessionStore store = KeycloakSessionStore.get();
+		if (persistentSession != null) {
+			store.remove(persistentSession);
+		}
+		if (cookie != null) {
+			store.removeCookie(cookie);
+			rsp.addCookie(KeycloakSessionStore.cookie(req, "", 0));
+		}
+	}
+
 	/**
 	 * Descriptor definition for Jenkins
 	 * 
@@ -421,6 +891,24 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 			return FormValidation.ok();
 		}
 
+		/**
+		 * Validate keycloakBypassPaths
+		 * 
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckKeycloakBypassPaths(@QueryParameter String value) {
+			for (String rule : BypassRules.parse(value)) {
+				if (!rule.startsWith("/") && !rule.startsWith("*")) {
+					return FormValidation.error("Rule " + rule + " must start with / or *.");
+				}
+				if (rule.equals("*") || rule.equals("/") || rule.equals("/*")) {
+					return FormValidation.warning("Rule " + rule + " skips the token check for all requests.");
+				}
+			}
+			return FormValidation.ok();
+		}
+
 		@Override
 		public SecurityRealm newInstance(StaplerRequest request, JSONObject formData) throws FormException {
 			JSONObject keycloakJson = formData.getJSONObject("keycloak").getJSONObject("keycloakJson");
@@ -448,6 +936,7 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	 */
 	public void setKeycloakJson(String keycloakJson) {
 		this.keycloakJson = keycloakJson;
+		invalidateDeployments();
 	}
 
 	/**
@@ -491,6 +980,215 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 		this.keycloakRespectAccessTokenTimeout = keycloakRespectAccessTokenTimeout;
 	}
 
+	/**
+	 * Returns the configuration parameter for the local token validation
+	 *
+	 * @return {@link Boolean} whether the access token is validated locally and
+	 *         only refreshed after it timed out
+	 */
+	public boolean isKeycloakValidateTokenLocally() {
+		return keycloakValidateTokenLocally;
+	}
+
+	/**
+	 * Sets the configuration parameter for the local token validation
+	 *
+	 * @param keycloakValidateTokenLocally
+	 *            {@link Boolean} whether the access token is validated locally
+	 *            and only refreshed after it timed out
+	 */
+	@DataBoundSetter
+	public void setKeycloakValidateTokenLocally(boolean keycloakValidateTokenLocally) {
+		this.keycloakValidateTokenLocally = keycloakValidateTokenLocally;
+	}
+
+	/**
+	 * Returns the configuration parameter for the bearer token authentication
+	 *
+	 * @return {@link Boolean} whether requests are authenticated by a keycloak
+	 *         access token in the Authorization header
+	 */
+	public boolean isKeycloakBearerAuthentication() {
+		return keycloakBearerAuthentication;
+	}
+
+	/**
+	 * Sets the configuration parameter for the bearer token authentication
+	 *
+	 * @param keycloakBearerAuthentication
+	 *            {@link Boolean} whether requests are authenticated by a
+	 *            keycloak access token in the Authorization header
+	 */
+	@DataBoundSetter
+	public void setKeycloakBearerAuthentication(boolean keycloakBearerAuthentication) {
+		this.keycloakBearerAuthentication = keycloakBearerAuthentication;
+	}
+
+	/**
+	 * Returns the configuration parameter for the user lookup
+	 *
+	 * @return {@link Boolean} whether users which are not logged in are looked
+	 *         up through the admin REST API of keycloak
+	 */
+	public boolean isKeycloakUserLookup() {
+		return keycloakUserLookup;
+	}
+
+	/**
+	 * Sets the configuration parameter for the user lookup
+	 *
+	 * @param keycloakUserLookup
+	 *            {@link Boolean} whether users which are not logged in are
+	 *            looked up through the admin REST API of keycloak
+	 */
+	@DataBoundSetter
+	public void setKeycloakUserLookup(boolean keycloakUserLookup) {
+		this.keycloakUserLookup = keycloakUserLookup;
+	}
+
+	/**
+	 * Returns the configuration parameter for the persisted sessions
+	 *
+	 * @return {@link Boolean} whether the sessions are stored in JENKINS_HOME
+	 *         and restored after a restart
+	 */
+	public boolean isKeycloakPersistSessions() {
+		return keycloakPersistSessions;
+	}
+
+	/**
+	 * Sets the configuration parameter for the persisted sessions
+	 *
+	 * @param keycloakPersistSessions
+	 *            {@link Boolean} whether the sessions are stored in
+	 *            JENKINS_HOME and restored after a restart
+	 */
+	@DataBoundSetter
+	public void setKeycloakPersistSessions(boolean keycloakPersistSessions) {
+		this.keycloakPersistSessions = keycloakPersistSessions;
+	}
+
+	/**
+	 * Returns the paths the token check is skipped for, in addition to the
+	 * default ones.
+	 *
+	 * @return {@link String} the path prefixes and <code>*</code> suffixes, one
+	 *         per line, or null if only the defaults are used
+	 */
+	public String getKeycloakBypassPaths() {
+		return keycloakBypassPaths;
+	}
+
+	/**
+	 * Sets the paths the token check is skipped for, in addition to the default
+	 * ones.
+	 *
+	 * @param keycloakBypassPaths
+	 *            {@link String} the path prefixes like <code>/static/</code>
+	 *            and suffixes like <code>*.png</code>, one per line
+	 */
+	@DataBoundSetter
+	public void setKeycloakBypassPaths(String keycloakBypassPaths) {
+		this.keycloakBypassPaths = Util.fixEmptyAndTrim(keycloakBypassPaths);
+		this.bypassRules = BypassRules.compile(this.keycloakBypassPaths);
+	}
+
+	/**
+	 * @return the compiled bypass rules
+	 */
+	BypassRules getBypassRules() {
+		BypassRules rules = bypassRules;
+		if (rules == null) {
+			// loaded from disk without calling the setter
+			rules = BypassRules.compile(keycloakBypassPaths);
+			bypassRules = rules;
+		}
+		return rules;
+	}
+
+	/**
+	 * Returns the HTTP client settings for the calls to keycloak.
+	 *
+	 * @return {@link KeycloakHttpClientConfig} the settings, or null if the
+	 *         defaults are used
+	 */
+	public KeycloakHttpClientConfig getHttpClient() {
+		return httpClient;
+	}
+
+	/**
+	 * Sets the HTTP client settings for the calls to keycloak.
+	 *
+	 * @param httpClient
+	 *            {@link KeycloakHttpClientConfig} the settings, null for the
+	 *            defaults
+	 */
+	@DataBoundSetter
+	public void setHttpClient(KeycloakHttpClientConfig httpClient) {
+		this.httpClient = httpClient;
+		invalidateDeployments();
+	}
+
+	/**
+	 * Returns the tenants served by other keycloak realms or clients.
+	 *
+	 * @return {@link List} the tenants, or null if all requests use the keycloak
+	 *         JSON of the realm
+	 */
+	public List<KeycloakTenant> getTenants() {
+		return tenants;
+	}
+
+	/**
+	 * Sets the tenants served by other keycloak realms or clients.
+	 *
+	 * @param tenants
+	 *            {@link List} the tenants, the first one matching the host of a
+	 *            request is used
+	 */
+	@DataBoundSetter
+	public void setTenants(List<KeycloakTenant> tenants) {
+		this.tenants = tenants == null || tenants.isEmpty() ? null : List.copyOf(tenants);
+		invalidateDeployments();
+	}
+
+	private KeycloakHttpClientConfig getEffectiveHttpClient() {
+		return httpClient != null ? httpClient : new KeycloakHttpClientConfig();
+	}
+
+	/**
+	 * Returns the metrics of the communication with keycloak, shown on the status
+	 * page.
+	 *
+	 * @return {@link KeycloakMetrics} the metrics
+	 */
+	@Restricted(NoExternalUse.class)
+	public KeycloakMetrics getMetrics() {
+		return KeycloakMetrics.get();
+	}
+
+	/**
+	 * Returns the configuration parameter for the avatar cache
+	 *
+	 * @return {@link Boolean} whether the avatars of the users are cached and
+	 *         served by Jenkins
+	 */
+	public boolean isKeycloakAvatarCache() {
+		return keycloakAvatarCache;
+	}
+
+	/**
+	 * Sets the configuration parameter for the avatar cache
+	 *
+	 * @param keycloakAvatarCache
+	 *            {@link Boolean} whether the avatars of the users are cached and
+	 *            served by Jenkins
+	 */
+	@DataBoundSetter
+	public void setKeycloakAvatarCache(boolean keycloakAvatarCache) {
+		this.keycloakAvatarCache = keycloakAvatarCache;
+	}
+
 	/**
 	 * Returns the keycloak idp hint.
 	 *
@@ -525,21 +1223,274 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	 * @return {@link Boolean}
 	 */
 	public boolean respectAccessTokenTimeout() {
-		return isKeycloakRespectAccessTokenTimeout();
+		return isKeycloakRespectAccessTokenTimeout() || isKeycloakValidateTokenLocally();
 	}
 
 	/**
-	 * Returns the current KeycloakDeployment configuration.
+	 * Returns true if refreshed access tokens should be verified locally against
+	 * the realm keys
+	 *
+	 * @return {@link Boolean}
+	 */
+	public boolean validateTokenLocally() {
+		return isKeycloakValidateTokenLocally();
+	}
+
+	/**
+	 * Returns the current KeycloakDeployment configuration. Once built, the
+	 * deployment is read without locking.
 	 * 
 	 * @return {@link KeycloakDeployment} the keycloak configuration
 	 * @throws IOException
 	 */
-	public synchronized KeycloakDeployment getKeycloakDeployment() throws IOException {
-		if (keycloakDeployment == null || keycloakDeployment.getClient() == null) {
-			AdapterConfig adapterConfig = JsonSerialization.readValue(getKeycloakJson(), AdapterConfig.class);
-			keycloakDeployment = KeycloakDeploymentBuilder.build(adapterConfig);
+	public KeycloakDeployment getKeycloakDeployment() throws IOException {
+		return getKeycloakDeployment(null);
+	}
+
+	/**
+	 * Returns the KeycloakDeployment of a tenant. Each deployment is built once
+	 * and read without locking afterwards.
+	 * 
+	 * @param tenant
+	 *            the name of the tenant, null for the keycloak JSON of the realm
+	 * @return {@link KeycloakDeployment} the keycloak configuration of the tenant
+	 * @throws IOException
+	 *             if the keycloak JSON cannot be parsed or the tenant does not
+	 *             exist anymore
+	 */
+	public KeycloakDeployment getKeycloakDeployment(String tenant) throws IOException {
+		return getTenantDeployment(tenant).getDeployment();
+	}
+
+	TenantDeployment getTenantDeployment(String tenant) throws IOException {
+		String key = tenant == null ? DEFAULT_TENANT : tenant;
+		Map<String, TenantDeployment> built = deployments;
+		TenantDeployment deployment = built == null ? null : built.get(key);
+		if (deployment != null && !deployment.isRetired()) {
+			return deployment;
+		}
+		return buildTenantDeployment(key);
+	}
+
+	/**
+	 * @return the deployments built so far
+	 */
+	Collection<KeycloakDeployment> getBuiltDeployments() {
+		Map<String, TenantDeployment> built = deployments;
+		List<KeycloakDeployment> result = new ArrayList<>();
+		if (built != null) {
+			for (TenantDeployment deployment : built.values()) {
+				result.add(deployment.getDeployment());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Builds the deployment of a tenant on its first access, unless another
+	 * thread already did.
+	 */
+	private synchronized TenantDeployment buildTenantDeployment(String key) throws IOException {
+		Map<String, TenantDeployment> built = deployments == null ? Map.of() : deployments;
+		TenantDeployment deployment = built.get(key);
+		if (deployment == null || deployment.isRetired()) {
+			// unchanged deployments of other realms are reused with their connection pools
+			deployment = TenantDeployment.obtain(getTenantJson(key), getEffectiveHttpClient());
+			Map<String, TenantDeployment> next = new HashMap<>(built);
+			next.put(key, deployment);
+			deployments = Map.copyOf(next);
+		}
+		return deployment;
+	}
+
+	/**
+	 * Builds the deployments of all tenants which are not built yet, e.g. once
+	 * the realm was installed.
+	 *
+	 * @return the deployments of the tenants whose keycloak JSON could be
+	 *         parsed
+	 */
+	Collection<TenantDeployment> buildDeployments() {
+		List<TenantDeployment> result = new ArrayList<>();
+		for (String key : getTenantKeys()) {
+			try {
+				result.add(getTenantDeployment(key));
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Keycloak JSON could not be parsed, deployment is built on next access", e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forgets the deployments after the configuration changed, they are built
+	 * again on next access. Those of the installed realm are only retired once
+	 * Jenkins saved the new realm.
+	 */
+	private synchronized void invalidateDeployments() {
+		deployments = null;
+		if (userLookup != null) {
+			userLookup.invalidateAll();
+		}
+	}
+
+	/**
+	 * @return the key of the realm configuration and the names of the tenants
+	 */
+	private List<String> getTenantKeys() {
+		List<String> keys = new ArrayList<>();
+		keys.add(DEFAULT_TENANT);
+		List<KeycloakTenant> configured = tenants;
+		if (configured != null) {
+			for (KeycloakTenant tenant : configured) {
+				keys.add(tenant.getName());
+			}
+		}
+		return keys;
+	}
+
+	private String getTenantJson(String key) throws IOException {
+		if (DEFAULT_TENANT.equals(key)) {
+			return getKeycloakJson();
+		}
+		if (tenants != null) {
+			for (KeycloakTenant tenant : tenants) {
+				if (tenant.getName().equals(key)) {
+					return tenant.getKeycloakJson();
+				}
+			}
+		}
+		throw new IOException("Keycloak tenant " + key + " does not exist");
+	}
+
+	/**
+	 * Keycloak cannot send a crumb with the back-channel logout, the logout token
+	 * is verified instead.
+	 */
+	@Extension
+	public static class BackchannelLogoutCrumbExclusion extends CrumbExclusion {
+		@Override
+		public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+				throws IOException, ServletException {
+			String pathInfo = req.getPathInfo();
+			if (pathInfo != null && pathInfo.equals("/" + BACKCHANNEL_LOGOUT_URL)) {
+				chain.doFilter(req, resp);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Requests authenticated by a bearer token come from scripts, not from a
+	 * browser session, so they cannot be forged cross-site. Invalid tokens are
+	 * rejected by the {@link RefreshFilter}.
+	 */
+	@Extension
+	public static class BearerTokenCrumbExclusion extends CrumbExclusion {
+		@Override
+		public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+				throws IOException, ServletException {
+			SecurityRealm sr = Jenkins.get().getSecurityRealm();
+			if (sr instanceof KeycloakSecurityRealm && ((KeycloakSecurityRealm) sr).isKeycloakBearerAuthentication()
+					&& BearerTokenAuthenticator.getBearerToken(req) != null) {
+				chain.doFilter(req, resp);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the connection pools of the keycloak deployments once the security
+	 * realm of Jenkins was replaced, unless the new realm reuses them. Realms
+	 * which are only bound from a form or a configuration file never retire
+	 * anything.
+	 */
+	@Restricted(NoExternalUse.class)
+	@Extension
+	public static class DeploymentRetirement extends SaveableListener {
+
+		// the security realm the deployments were retired for last
+		private volatile SecurityRealm installed;
+
+		@Override
+		public void onChange(Saveable o, XmlFile file) {
+			if (o instanceof Jenkins) {
+				SecurityRealm realm = ((Jenkins) o).getSecurityRealm();
+				if (realm != installed) {
+					installed = realm;
+					retire(realm);
+				}
+			}
+		}
+
+		/**
+		 * Builds the deployments of the installed realm and retires all others.
+		 *
+		 * @param realm the installed security realm
+		 */
+		static void retire(SecurityRealm realm) {
+			Collection<TenantDeployment> inUse = realm instanceof KeycloakSecurityRealm
+					? ((KeycloakSecurityRealm) realm).buildDeployments()
+					: List.of();
+			if (TenantDeployment.retireAllExcept(inUse)) {
+				LOGGER.log(Level.FINE, "Security realm replaced, retired the keycloak deployments it does not use");
+				// tokens verified with the previous realm configuration
+				BearerTokenAuthenticator.invalidateAll();
+			}
+		}
+	}
+
+	/**
+	 * Writes the new and refreshed keycloak sessions which are still waiting
+	 * for the background write before Jenkins shuts down.
+	 */
+	@Restricted(NoExternalUse.class)
+	@Extension
+	public static class SessionStoreFlush extends ItemListener {
+		@Override
+		public void onBeforeShutdown() {
+			KeycloakSessionStore store = KeycloakSessionStore.getIfLoaded();
+			if (store != null) {
+				try {
+					store.flush();
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to store the keycloak sessions", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks up the users who triggered the queued builds in the background, so
+	 * the authentication of the queue items finds them in the cache instead of
+	 * calling keycloak once per item.
+	 */
+	@Restricted(NoExternalUse.class)
+	@Extension
+	public static class UserLookupPrefetcher extends QueueListener {
+		@Override
+		public void onEnterWaiting(Queue.WaitingItem wi) {
+			SecurityRealm sr = Jenkins.get().getSecurityRealm();
+			if (!(sr instanceof KeycloakSecurityRealm) || !((KeycloakSecurityRealm) sr).isKeycloakUserLookup()) {
+				return;
+			}
+			Set<String> userIds = new HashSet<>();
+			for (Cause cause : wi.getCauses()) {
+				if (cause instanceof Cause.UserIdCause && ((Cause.UserIdCause) cause).getUserId() != null) {
+					userIds.add(((Cause.UserIdCause) cause).getUserId());
+				}
+			}
+			if (!userIds.isEmpty()) {
+				KeycloakSecurityRealm ksr = (KeycloakSecurityRealm) sr;
+				try {
+					ksr.getUserLookup().prefetch(ksr.getKeycloakDeployment(), userIds);
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "Prefetch of users " + userIds + " failed", e);
+				}
+			}
 		}
-		return keycloakDeployment;
 	}
 
 	/**
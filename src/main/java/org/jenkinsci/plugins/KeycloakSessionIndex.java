@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpSession;
+
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+/**
+ * Index of the Jenkins sessions of users logged in with keycloak, by keycloak
+ * session id (<code>sid</code>) and subject. It is used by the back-channel
+ * logout to invalidate the sessions of a user logged out in keycloak. The
+ * sessions are only weakly referenced, a session dropped by the servlet
+ * container is not kept alive until the next purge.
+ */
+@Restricted(NoExternalUse.class)
+public final class KeycloakSessionIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakSessionIndex.class.getName());
+
+	private static final KeycloakSessionIndex INSTANCE = new KeycloakSessionIndex();
+
+	private final ConcurrentMap<String, Set<HttpSession>> bySessionId = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Set<HttpSession>> bySubject = new ConcurrentHashMap<>();
+
+	KeycloakSessionIndex() {
+	}
+
+	static KeycloakSessionIndex get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers the Jenkins session of a user who just logged in.
+	 *
+	 * @param keycloakSessionId the keycloak session id, may be null
+	 * @param subject the subject of the tokens, may be null
+	 * @param session the Jenkins session
+	 */
+	void register(String keycloakSessionId, String subject, HttpSession session) {
+		if (keycloakSessionId != null) {
+			add(bySessionId, keycloakSessionId, session);
+		}
+		if (subject != null) {
+			add(bySubject, subject, session);
+		}
+	}
+
+	private static void add(ConcurrentMap<String, Set<HttpSession>> index, String key, HttpSession session) {
+		// atomic with the removal of empty entries in purge
+		index.compute(key, (k, sessions) -> {
+			Set<HttpSession> result = sessions == null
+					? Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()))
+					: sessions;
+			result.add(session);
+			return result;
+		});
+	}
+
+	/**
+	 * Invalidates all Jenkins sessions belonging to a keycloak session.
+	 *
+	 * @param keycloakSessionId the keycloak session id
+	 * @return the number of invalidated sessions
+	 */
+	int invalidateSessionId(String keycloakSessionId) {
+		return invalidate(bySessionId.remove(keycloakSessionId));
+	}
+
+	/**
+	 * Invalidates all Jenkins sessions of a subject.
+	 *
+	 * @param subject the subject of the tokens
+	 * @return the number of invalidated sessions
+	 */
+	int invalidateSubject(String subject) {
+		return invalidate(bySubject.remove(subject));
+	}
+
+	private static int invalidate(Set<HttpSession> sessions) {
+		int count = 0;
+		if (sessions != null) {
+			List<HttpSession> copy;
+			synchronized (sessions) {
+				copy = new ArrayList<>(sessions);
+			}
+			for (HttpSession session : copy) {
+				try {
+					session.invalidate();
+					count++;
+				} catch (IllegalStateException e) {
+					// already invalidated
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Removes sessions which were invalidated or timed out in the meantime.
+	 */
+	void purge() {
+		purge(bySessionId);
+		purge(bySubject);
+	}
+
+	/**
+	 * @return the number of indexed keycloak session ids and subjects
+	 */
+	int size() {
+		return bySessionId.size() + bySubject.size();
+	}
+
+	private static void purge(ConcurrentMap<String, Set<HttpSession>> index) {
+		for (String key : index.keySet()) {
+			index.computeIfPresent(key, (k, sessions) -> {
+				sessions.removeIf(session -> !isValid(session));
+				return sessions.isEmpty() ? null : sessions;
+			});
+		}
+	}
+
+	private static boolean isValid(HttpSession session) {
+		try {
+			session.getCreationTime();
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Regularly drops sessions which ended without a back-channel logout.
+	 */
+	@Extension
+	public static final class Purge extends PeriodicWork {
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TimeUnit.MINUTES.toMillis(10);
+		}
+
+		@Override
+		protected void doRun() {
+			INSTANCE.purge();
+			LOGGER.log(Level.FINER, "Purged keycloak session index");
+		}
+	}
+}
@@ -0,0 +1,618 @@
+package org.jenkinsci.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import hudson.Util;
+import jenkins.model.Jenkins;
+import jenkins.security.ConfidentialKey;
+import jenkins.security.ConfidentialStore;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Store of the keycloak sessions in <code>JENKINS_HOME/keycloak-sessions.log</code>,
+ * so users stay logged in when Jenkins restarts. The browser keeps a random
+ * session key in a cookie, the store keeps the refresh token and the
+ * authorities of the session under the hash of that key. A session is
+ * restored on the first request after the restart and its tokens are
+ * refreshed right away.
+ * <p>
+ * Each change is appended as a record encrypted with AES-GCM, the file is
+ * compacted to the live sessions once it holds more outdated records than
+ * live ones. New and refreshed sessions are written in the background, the
+ * changes of a short period together, so requests do not wait for the disk.
+ * Removed sessions are written right away, they must not be restored after a
+ * restart.
+ */
+final class KeycloakSessionStore {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakSessionStore.class.getName());
+
+	/**
+	 * Name of the cookie holding the session key.
+	 */
+	static final String COOKIE = "jenkins-keycloak-session";
+
+	/**
+	 * How long (in seconds) the browser keeps the session cookie. The session
+	 * itself ends when its refresh token expires.
+	 */
+	static final int COOKIE_MAX_AGE = SystemProperties.getInteger(KeycloakSessionStore.class.getName() + ".cookieMaxAge",
+			(int) TimeUnit.DAYS.toSeconds(30));
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_LENGTH = 128;
+	private static final int MAX_RECORD = 1024 * 1024;
+	private static final int COMPACT_SLACK = 100;
+
+	/**
+	 * Milliseconds new and refreshed sessions are collected before they are
+	 * written together.
+	 */
+	static final long WRITE_DELAY = SystemProperties.getLong(KeycloakSessionStore.class.getName() + ".writeDelay", 1000L);
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private static KeycloakSessionStore instance;
+
+	private final Path file;
+	private final SecretKey key;
+	// guarded by this
+	private final Map<String, Entry> entries = new HashMap<>();
+	// sessions added or refreshed since the last write, guarded by this
+	private final Set<String> changed = new LinkedHashSet<>();
+	private boolean writeScheduled;
+	// taken before this, guards the file, out and records
+	private final Object fileLock = new Object();
+	private DataOutputStream out;
+	// records in the file, live or outdated
+	private int records;
+
+	KeycloakSessionStore(Path file, SecretKey key) throws IOException {
+		this.file = file;
+		this.key = key;
+		load();
+		synchronized (fileLock) {
+			Map<String, Entry> live;
+			synchronized (this) {
+				live = pruned();
+			}
+			compact(live);
+		}
+	}
+
+	static synchronized KeycloakSessionStore get() throws IOException {
+		if (instance == null) {
+			instance = new KeycloakSessionStore(new File(Jenkins.get().getRootDir(), "keycloak-sessions.log").toPath(),
+					new StoreKey().getKey());
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the store, or null if no session was stored or restored since
+	 *         Jenkins started
+	 */
+	static synchronized KeycloakSessionStore getIfLoaded() {
+		return instance;
+	}
+
+	/**
+	 * Stores the tokens of a session after they were refreshed.
+	 *
+	 * @param auth the refreshed authentication of a persisted session
+	 */
+	static void refreshed(KeycloakAuthentication auth) {
+		KeycloakSessionStore store = getIfLoaded();
+		if (store != null) {
+			store.update(auth);
+		}
+	}
+
+	/**
+	 * @param request the request
+	 * @return the session key sent by the browser, or null if it has none
+	 */
+	static String getCookie(HttpServletRequest request) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (COOKIE.equals(cookie.getName())) {
+					return Util.fixEmpty(cookie.getValue());
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param request the request
+	 * @param value the session key, empty to remove the cookie
+	 * @param maxAge the lifetime of the cookie in seconds, 0 to remove it
+	 * @return the cookie holding the session key, only sent over https if the
+	 *         root URL of Jenkins is an https URL
+	 */
+	static Cookie cookie(HttpServletRequest request, String value, int maxAge) {
+		Cookie cookie = new Cookie(COOKIE, value);
+		String path = request.getContextPath();
+		cookie.setPath(path == null || path.isEmpty() ? "/" : path);
+		cookie.setMaxAge(maxAge);
+		cookie.setHttpOnly(true);
+		// behind a reverse proxy terminating TLS the request itself is not secure
+		String rootUrl = Jenkins.get().getRootUrl();
+		cookie.setSecure(rootUrl != null && rootUrl.startsWith("https:"));
+		return cookie;
+	}
+
+	/**
+	 * Persists the session of a user who just logged in.
+	 *
+	 * @param auth the authentication of the login
+	 * @param keycloakSessionId the keycloak session id, may be null
+	 * @param subject the subject of the tokens, may be null
+	 * @return the session key to be kept in the cookie of the browser
+	 */
+	synchronized String add(KeycloakAuthentication auth, String keycloakSessionId, String subject) {
+		byte[] random = new byte[32];
+		RANDOM.nextBytes(random);
+		String value = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+		String hash = hash(value);
+		Entry entry = new Entry(auth, keycloakSessionId, subject);
+		entry.restored = auth;
+		auth.setPersistentSession(hash);
+		entries.put(hash, entry);
+		scheduleWrite(hash);
+		return value;
+	}
+
+	/**
+	 * Stores the current refresh token of a persisted session. Only the latest
+	 * tokens of a session refreshed several times before the next write are
+	 * written.
+	 *
+	 * @param auth the authentication of the session
+	 */
+	synchronized void update(KeycloakAuthentication auth) {
+		String hash = auth.getPersistentSession();
+		Entry previous = hash == null ? null : entries.get(hash);
+		if (previous == null) {
+			// logged out in the meantime
+			return;
+		}
+		Entry entry = new Entry(auth, previous.keycloakSessionId, previous.subject);
+		entry.restored = previous.restored;
+		entries.put(hash, entry);
+		scheduleWrite(hash);
+	}
+
+	// guarded by this
+	private void scheduleWrite(String hash) {
+		changed.add(hash);
+		if (!writeScheduled) {
+			writeScheduled = true;
+			Timer.get().schedule(this::flushInBackground, WRITE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flushInBackground() {
+		try {
+			flush();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to store the keycloak sessions", e);
+		}
+	}
+
+	/**
+	 * Writes the sessions added or refreshed since the last write, e.g. before
+	 * Jenkins shuts down.
+	 *
+	 * @throws IOException if the sessions could not be stored
+	 */
+	void flush() throws IOException {
+		synchronized (fileLock) {
+			List<byte[]> payloads = new ArrayList<>();
+			Map<String, Entry> live = null;
+			synchronized (this) {
+				writeScheduled = false;
+				for (String hash : changed) {
+					Entry entry = entries.get(hash);
+					// removed sessions were written right away
+					if (entry != null) {
+						payloads.add(put(hash, entry));
+					}
+				}
+				changed.clear();
+				if (records + payloads.size() > 2 * entries.size() + COMPACT_SLACK) {
+					live = pruned();
+				}
+			}
+			if (live != null) {
+				compact(live);
+			} else if (!payloads.isEmpty()) {
+				append(payloads);
+			}
+		}
+	}
+
+	/**
+	 * Restores a session from its key. Requests of the same browser share the
+	 * restored authentication, so its tokens are refreshed once.
+	 *
+	 * @param value the session key from the cookie
+	 * @return the authentication of the session, with an expired access token,
+	 *         or null if there is no such session or it expired
+	 * @throws IOException if the expired session could not be removed
+	 */
+	KeycloakAuthentication restore(String value) throws IOException {
+		String hash = hash(value);
+		synchronized (this) {
+			Entry entry = entries.get(hash);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.refreshExpiresAt > System.currentTimeMillis()) {
+				if (entry.restored == null) {
+					KeycloakAuthentication auth = new KeycloakAuthentication(entry.userName, entry.roles,
+							entry.refreshToken, entry.refreshExpiresAt);
+					auth.setTenant(entry.tenant);
+					auth.setPersistentSession(hash);
+					entry.restored = auth;
+				}
+				return entry.restored;
+			}
+		}
+		// the file is written outside of the lock of the sessions
+		remove(hash);
+		return null;
+	}
+
+	/**
+	 * Allows the back-channel logout to find a restored session.
+	 *
+	 * @param auth the restored authentication
+	 * @param session the Jenkins session it was restored into
+	 */
+	synchronized void index(KeycloakAuthentication auth, HttpSession session) {
+		Entry entry = auth.getPersistentSession() == null ? null : entries.get(auth.getPersistentSession());
+		if (entry != null) {
+			KeycloakSessionIndex.get().register(entry.keycloakSessionId, entry.subject, session);
+		}
+	}
+
+	/**
+	 * Removes a session, e.g. when the user logs out.
+	 *
+	 * @param hash the key of the session in the store
+	 * @throws IOException if the removal could not be stored
+	 */
+	void remove(String hash) throws IOException {
+		synchronized (fileLock) {
+			synchronized (this) {
+				if (entries.remove(hash) == null) {
+					return;
+				}
+			}
+			append(List.of(removal(hash)));
+		}
+	}
+
+	/**
+	 * Removes the session sent by a browser.
+	 *
+	 * @param value the session key from the cookie
+	 * @throws IOException if the removal could not be stored
+	 */
+	void removeCookie(String value) throws IOException {
+		remove(hash(value));
+	}
+
+	/**
+	 * Removes all sessions belonging to a keycloak session.
+	 *
+	 * @param keycloakSessionId the keycloak session id
+	 * @return the number of removed sessions
+	 * @throws IOException if the removal could not be stored
+	 */
+	int removeSessionId(String keycloakSessionId) throws IOException {
+		List<String> hashes = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				if (keycloakSessionId.equals(e.getValue().keycloakSessionId)) {
+					hashes.add(e.getKey());
+				}
+			}
+		}
+		for (String hash : hashes) {
+			remove(hash);
+		}
+		return hashes.size();
+	}
+
+	/**
+	 * Removes all sessions of a subject.
+	 *
+	 * @param subject the subject of the tokens
+	 * @return the number of removed sessions
+	 * @throws IOException if the removal could not be stored
+	 */
+	int removeSubject(String subject) throws IOException {
+		List<String> hashes = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				if (subject.equals(e.getValue().subject)) {
+					hashes.add(e.getKey());
+				}
+			}
+		}
+		for (String hash : hashes) {
+			remove(hash);
+		}
+		return hashes.size();
+	}
+
+	/**
+	 * @return the number of stored sessions
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	private void load() throws IOException {
+		int skipped = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if (length <= IV_LENGTH || length > MAX_RECORD) {
+					LOGGER.log(Level.WARNING, "Keycloak session store {0} is corrupt, ignoring its remainder", file);
+					break;
+				}
+				byte[] record = new byte[length];
+				try {
+					in.readFully(record);
+				} catch (EOFException e) {
+					// Jenkins stopped while the record was written
+					break;
+				}
+				try {
+					read(decrypt(record));
+				} catch (GeneralSecurityException e) {
+					// written with another key, e.g. a restored backup
+					skipped++;
+				}
+			}
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		if (skipped > 0) {
+			LOGGER.log(Level.WARNING, "Skipped {0} keycloak sessions which could not be decrypted", skipped);
+		}
+	}
+
+	private void read(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+		String hash = in.readUTF();
+		if (op == REMOVE) {
+			entries.remove(hash);
+			return;
+		}
+		Entry entry = new Entry();
+		entry.userName = in.readUTF();
+		entry.tenant = Util.fixEmpty(in.readUTF());
+		entry.refreshToken = in.readUTF();
+		entry.refreshExpiresAt = in.readLong();
+		entry.keycloakSessionId = Util.fixEmpty(in.readUTF());
+		entry.subject = Util.fixEmpty(in.readUTF());
+		int count = in.readInt();
+		List<String> roles = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			roles.add(in.readUTF());
+		}
+		entry.roles = roles;
+		entries.put(hash, entry);
+	}
+
+	/**
+	 * Drops the expired sessions.
+	 *
+	 * @return a copy of the live sessions
+	 */
+	// guarded by this
+	private Map<String, Entry> pruned() {
+		long now = System.currentTimeMillis();
+		entries.values().removeIf(entry -> entry.refreshExpiresAt <= now);
+		return new HashMap<>(entries);
+	}
+
+	/**
+	 * Rewrites the file with the live sessions only.
+	 *
+	 * @param live the live sessions
+	 */
+	// guarded by fileLock
+	private void compact(Map<String, Entry> live) throws IOException {
+		if (out != null) {
+			out.close();
+		}
+		Files.createDirectories(file.getParent());
+		Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream compacted = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				for (Map.Entry<String, Entry> e : live.entrySet()) {
+					write(compacted, put(e.getKey(), e.getValue()));
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		records = live.size();
+		out = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+		LOGGER.log(Level.FINE, "Compacted keycloak session store to {0} sessions", records);
+	}
+
+	// guarded by fileLock
+	private void append(List<byte[]> payloads) throws IOException {
+		for (byte[] payload : payloads) {
+			write(out, payload);
+		}
+		out.flush();
+		records += payloads.size();
+	}
+
+	private void write(DataOutputStream stream, byte[] payload) throws IOException {
+		byte[] iv = new byte[IV_LENGTH];
+		RANDOM.nextBytes(iv);
+		byte[] encrypted;
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+			encrypted = cipher.doFinal(payload);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to encrypt keycloak session", e);
+		}
+		stream.writeInt(iv.length + encrypted.length);
+		stream.write(iv);
+		stream.write(encrypted);
+	}
+
+	private byte[] decrypt(byte[] record) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, record, 0, IV_LENGTH));
+		return cipher.doFinal(record, IV_LENGTH, record.length - IV_LENGTH);
+	}
+
+	private static byte[] put(String hash, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeByte(PUT);
+		payload.writeUTF(hash);
+		payload.writeUTF(entry.userName);
+		payload.writeUTF(Util.fixNull(entry.tenant));
+		payload.writeUTF(entry.refreshToken);
+		payload.writeLong(entry.refreshExpiresAt);
+		payload.writeUTF(Util.fixNull(entry.keycloakSessionId));
+		payload.writeUTF(Util.fixNull(entry.subject));
+		payload.writeInt(entry.roles.size());
+		for (String role : entry.roles) {
+			payload.writeUTF(role);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] removal(String hash) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeByte(REMOVE);
+		payload.writeUTF(hash);
+		return bytes.toByteArray();
+	}
+
+	private static String hash(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Util.toHexString(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A stored session.
+	 */
+	private static final class Entry {
+		String userName;
+		String tenant;
+		String refreshToken;
+		long refreshExpiresAt;
+		String keycloakSessionId;
+		String subject;
+		List<String> roles;
+		// shared by the requests restoring the session
+		KeycloakAuthentication restored;
+
+		Entry() {
+		}
+
+		Entry(KeycloakAuthentication auth, String keycloakSessionId, String subject) {
+			this.userName = auth.getName();
+			this.tenant = auth.getTenant();
+			this.refreshToken = auth.getRefreshToken();
+			this.refreshExpiresAt = System.currentTimeMillis() + auth.getRefreshExpiresInMillis();
+			this.keycloakSessionId = keycloakSessionId;
+			this.subject = subject;
+			List<String> names = new ArrayList<>();
+			for (GrantedAuthority authority : auth.getAuthorities()) {
+				names.add(authority.getAuthority());
+			}
+			this.roles = names;
+		}
+	}
+
+	/**
+	 * The AES key of the store, kept in the confidential store of Jenkins.
+	 */
+	private static final class StoreKey extends ConfidentialKey {
+
+		StoreKey() {
+			super(KeycloakSessionStore.class.getName());
+		}
+
+		SecretKey getKey() throws IOException {
+			byte[] payload = load();
+			if (payload == null) {
+				payload = ConfidentialStore.get().randomBytes(16);
+				store(payload);
+			}
+			return new SecretKeySpec(payload, "AES");
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.apache.commons.lang.StringUtils;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * A keycloak realm or client serving the requests to some host names of
+ * Jenkins. Requests to other hosts use the keycloak JSON of the security
+ * realm.
+ */
+public class KeycloakTenant extends AbstractDescribableImpl<KeycloakTenant> {
+
+	private final String name;
+	private final String hostPattern;
+	private final String keycloakJson;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name the unique name of the tenant, kept in the sessions of its
+	 *            users
+	 * @param hostPattern the host name the tenant serves, or
+	 *            <code>*.domain</code> for all hosts of a domain
+	 * @param keycloakJson the keycloak JSON of the tenant
+	 */
+	@DataBoundConstructor
+	public KeycloakTenant(String name, String hostPattern, String keycloakJson) {
+		super();
+		this.name = StringUtils.trimToEmpty(name);
+		this.hostPattern = StringUtils.trimToEmpty(hostPattern);
+		this.keycloakJson = keycloakJson;
+	}
+
+	/**
+	 * @return the unique name of the tenant
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the host name the tenant serves, or <code>*.domain</code> for all
+	 *         hosts of a domain
+	 */
+	public String getHostPattern() {
+		return hostPattern;
+	}
+
+	/**
+	 * @return the keycloak JSON of the tenant
+	 */
+	public String getKeycloakJson() {
+		return keycloakJson;
+	}
+
+	/**
+	 * @param host the host name of a request
+	 * @return true if the tenant serves the host
+	 */
+	boolean matches(String host) {
+		if (host == null || hostPattern.isEmpty()) {
+			return false;
+		}
+		String h = host.toLowerCase(Locale.ROOT);
+		String pattern = hostPattern.toLowerCase(Locale.ROOT);
+		if (pattern.startsWith("*.")) {
+			return h.endsWith(pattern.substring(1));
+		}
+		return h.equals(pattern);
+	}
+
+	/**
+	 * Descriptor definition for Jenkins
+	 */
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<KeycloakTenant> {
+
+		@Override
+		@NonNull
+		public String getDisplayName() {
+			return "Keycloak tenant";
+		}
+
+		/**
+		 * Validate name
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckName(@QueryParameter String value) {
+			return FormValidation.validateRequired(value);
+		}
+
+		/**
+		 * Validate hostPattern
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckHostPattern(@QueryParameter String value) {
+			return FormValidation.validateRequired(value);
+		}
+
+		/**
+		 * Validate keycloakJson
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 */
+		public FormValidation doCheckKeycloakJson(@QueryParameter String value) {
+			if (StringUtils.isEmpty(value)) {
+				return FormValidation.error("Keycloak JSON is required.");
+			}
+			try {
+				JsonSerialization.readValue(value, AdapterConfig.class);
+			} catch (IOException ex) {
+				return FormValidation.error("Issue parsing keycloak adapter json. JSON does not appear valid.");
+			}
+			return FormValidation.ok();
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+import org.keycloak.adapters.authentication.ClientCredentialsProviderUtils;
+import org.keycloak.common.util.KeycloakUriBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.springframework.security.core.GrantedAuthority;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.model.Computer;
+import jenkins.util.SystemProperties;
+
+/**
+ * Looks up users and their roles through the admin REST API of keycloak, for
+ * users who are not logged in. The realm client authenticates with its service
+ * account, which needs the <code>view-users</code> and
+ * <code>view-clients</code> roles of the <code>realm-management</code> client.
+ * The results are cached for {@link #CACHE_TTL} seconds, unknown users as well.
+ */
+final class KeycloakUserLookup {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakUserLookup.class.getName());
+
+	/**
+	 * How long (in seconds) a looked up user is cached.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long CACHE_TTL = SystemProperties
+			.getLong(KeycloakUserLookup.class.getName() + ".cacheTtl", 300L);
+
+	/**
+	 * Maximum number of cached users and roles.
+	 */
+	static final int CACHE_SIZE = SystemProperties.getInteger(KeycloakUserLookup.class.getName() + ".cacheSize",
+			10000);
+
+	// refresh the service account token this long before it expires
+	private static final long TOKEN_MIN_VALIDITY = TimeUnit.SECONDS.toNanos(30);
+
+	private final Cache<String, Optional<KeycloakUserDetails>> users = CacheBuilder.newBuilder()
+			.maximumSize(CACHE_SIZE).expireAfterWrite(CACHE_TTL, TimeUnit.SECONDS).build();
+	private final Cache<String, Boolean> roles = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE)
+			.expireAfterWrite(CACHE_TTL, TimeUnit.SECONDS).build();
+	private final ConcurrentHashMap<String, Boolean> prefetching = new ConcurrentHashMap<>();
+
+	// the id of the client by its client id, failed and empty lookups are removed again
+	private final ConcurrentHashMap<String, CompletableFuture<String>> clientUuids = new ConcurrentHashMap<>();
+
+	private String serviceAccountToken;
+	private long serviceAccountTokenExpiry;
+	// the token request in flight, shared by the lookups needing a new token
+	private CompletableFuture<String> serviceAccountTokenFetch;
+
+	/**
+	 * Looks up a user.
+	 *
+	 * @param deployment the keycloak deployment
+	 * @param userName the user name
+	 * @return the user with the authorities mapped from its realm and client
+	 *         roles, empty if keycloak does not know the user
+	 * @throws IOException if the communication with keycloak fails
+	 * @throws HttpFailure if keycloak rejects the lookup
+	 */
+	Optional<KeycloakUserDetails> loadUser(KeycloakDeployment deployment, String userName)
+			throws IOException, HttpFailure {
+		Optional<KeycloakUserDetails> user = users.getIfPresent(userName);
+		if (user == null) {
+			user = timed(deployment, () -> fetchUser(deployment, userName));
+			users.put(userName, user);
+		}
+		return user;
+	}
+
+	/**
+	 * Checks whether a realm role or a role of the client exists.
+	 *
+	 * @param deployment the keycloak deployment
+	 * @param roleName the name of the role
+	 * @return true if the role exists
+	 * @throws IOException if the communication with keycloak fails
+	 * @throws HttpFailure if keycloak rejects the lookup
+	 */
+	boolean roleExists(KeycloakDeployment deployment, String roleName) throws IOException, HttpFailure {
+		Boolean exists = roles.getIfPresent(roleName);
+		if (exists == null) {
+			exists = timed(deployment, () -> fetchRoleExists(deployment, roleName));
+			roles.put(roleName, exists);
+		}
+		return exists;
+	}
+
+	/**
+	 * Looks up the users which are not cached yet in the background, so later
+	 * permission checks find them in the cache. Each user is fetched once even
+	 * if it is requested again while its lookup runs.
+	 *
+	 * @param deployment the keycloak deployment
+	 * @param userNames the user names
+	 */
+	void prefetch(KeycloakDeployment deployment, Collection<String> userNames) {
+		for (String userName : userNames) {
+			if (users.getIfPresent(userName) != null || prefetching.putIfAbsent(userName, Boolean.TRUE) != null) {
+				continue;
+			}
+			Computer.threadPoolForRemoting.submit(() -> {
+				try {
+					loadUser(deployment, userName);
+				} catch (IOException | HttpFailure | RuntimeException e) {
+					LOGGER.log(Level.FINE, "Prefetch of user " + userName + " failed", e);
+				} finally {
+					prefetching.remove(userName);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Drops all cached users and roles.
+	 */
+	void invalidateAll() {
+		users.invalidateAll();
+		roles.invalidateAll();
+		clientUuids.clear();
+	}
+
+	private <T> T timed(KeycloakDeployment deployment, KeycloakCircuitBreaker.KeycloakCall<T> call)
+			throws IOException, HttpFailure {
+		long start = System.nanoTime();
+		Throwable failure = null;
+		try {
+			return KeycloakCircuitBreaker.get(deployment).call(call);
+		} catch (IOException | HttpFailure | RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			KeycloakMetrics.get().record(KeycloakMetrics.Operation.USER_LOOKUP, start, failure);
+		}
+	}
+
+	private Optional<KeycloakUserDetails> fetchUser(KeycloakDeployment deployment, String userName)
+			throws IOException, HttpFailure {
+		List<UserRepresentation> found = get(deployment,
+				admin(deployment).path("/users").queryParam("username", userName).queryParam("exact", "true")
+						.build(deployment.getRealm()).toString(),
+				new TypeReference<List<UserRepresentation>>() {
+				});
+		UserRepresentation user = found == null ? null
+				: found.stream().filter(u -> userName.equalsIgnoreCase(u.getUsername())).findFirst().orElse(null);
+		if (user == null) {
+			return Optional.empty();
+		}
+		AccessToken roleHolder = new AccessToken();
+		AccessToken.Access realmAccess = new AccessToken.Access();
+		for (RoleRepresentation role : get(deployment,
+				admin(deployment).path("/users/{id}/role-mappings/realm/composite")
+						.build(deployment.getRealm(), user.getId()).toString(),
+				new TypeReference<List<RoleRepresentation>>() {
+				})) {
+			realmAccess.addRole(role.getName());
+		}
+		roleHolder.setRealmAccess(realmAccess);
+		String uuid = getClientUuid(deployment);
+		if (uuid != null) {
+			AccessToken.Access resourceAccess = roleHolder.addAccess(deployment.getResourceName());
+			for (RoleRepresentation role : get(deployment,
+					admin(deployment).path("/users/{id}/role-mappings/clients/{client}/composite")
+							.build(deployment.getRealm(), user.getId(), uuid).toString(),
+					new TypeReference<List<RoleRepresentation>>() {
+					})) {
+				resourceAccess.addRole(role.getName());
+			}
+		}
+		// the same mapping as for a login
+		List<GrantedAuthority> authorities = KeycloakAuthentication.buildRoles(roleHolder,
+				deployment.getResourceName());
+		return Optional.of(new KeycloakUserDetails(user.getUsername(), authorities));
+	}
+
+	private boolean fetchRoleExists(KeycloakDeployment deployment, String roleName) throws IOException, HttpFailure {
+		if (exists(deployment, admin(deployment).path("/roles/{role}").build(deployment.getRealm(), roleName)
+				.toString())) {
+			return true;
+		}
+		String uuid = getClientUuid(deployment);
+		return uuid != null && exists(deployment, admin(deployment).path("/clients/{client}/roles/{role}")
+				.build(deployment.getRealm(), uuid, roleName).toString());
+	}
+
+	private String getClientUuid(KeycloakDeployment deployment) throws IOException, HttpFailure {
+		String resource = deployment.getResourceName();
+		CompletableFuture<String> fetch = new CompletableFuture<>();
+		CompletableFuture<String> known = clientUuids.putIfAbsent(resource, fetch);
+		if (known != null) {
+			// looked up before or by a concurrent lookup right now
+			return await(known);
+		}
+		try {
+			List<ClientRepresentation> clients = get(deployment,
+					admin(deployment).path("/clients").queryParam("clientId", resource)
+							.build(deployment.getRealm()).toString(),
+					new TypeReference<List<ClientRepresentation>>() {
+					});
+			String uuid = clients == null || clients.isEmpty() ? null : clients.get(0).getId();
+			if (uuid == null) {
+				// asked again next time, e.g. once the service account may view the clients
+				clientUuids.remove(resource, fetch);
+			}
+			fetch.complete(uuid);
+			return uuid;
+		} catch (IOException | HttpFailure | RuntimeException | Error e) {
+			clientUuids.remove(resource, fetch);
+			fetch.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private static KeycloakUriBuilder admin(KeycloakDeployment deployment) {
+		return KeycloakUriBuilder.fromUri(deployment.getAuthServerBaseUrl()).path("/admin/realms/{realm}");
+	}
+
+	private <T> T get(KeycloakDeployment deployment, String url, TypeReference<T> type)
+			throws IOException, HttpFailure {
+		HttpGet get = new HttpGet(url);
+		HttpResponse response = execute(deployment, get);
+		HttpEntity entity = response.getEntity();
+		try (InputStream in = entity == null ? null : entity.getContent()) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				throw failure(status, entity);
+			}
+			return in == null ? null : JsonSerialization.readValue(in, type);
+		}
+	}
+
+	private boolean exists(KeycloakDeployment deployment, String url) throws IOException, HttpFailure {
+		HttpResponse response = execute(deployment, new HttpGet(url));
+		HttpEntity entity = response.getEntity();
+		int status = response.getStatusLine().getStatusCode();
+		if (status == 404) {
+			EntityUtils.consumeQuietly(entity);
+			return false;
+		}
+		if (status != 200) {
+			throw failure(status, entity);
+		}
+		EntityUtils.consumeQuietly(entity);
+		return true;
+	}
+
+	private HttpResponse execute(KeycloakDeployment deployment, HttpRequestBase request)
+			throws IOException, HttpFailure {
+		request.setHeader("Authorization", "Bearer " + getServiceAccountToken(deployment));
+		request.setHeader("Accept", "application/json");
+		HttpResponse response = deployment.getClient().execute(request);
+		if (response.getStatusLine().getStatusCode() == 401) {
+			// revoked or expired early, fetch a new one next time
+			synchronized (this) {
+				serviceAccountToken = null;
+			}
+		}
+		return response;
+	}
+
+	private String getServiceAccountToken(KeycloakDeployment deployment) throws IOException, HttpFailure {
+		CompletableFuture<String> fetch;
+		boolean own = false;
+		synchronized (this) {
+			if (serviceAccountToken != null && serviceAccountTokenExpiry - System.nanoTime() >= TOKEN_MIN_VALIDITY) {
+				return serviceAccountToken;
+			}
+			fetch = serviceAccountTokenFetch;
+			if (fetch == null) {
+				fetch = new CompletableFuture<>();
+				serviceAccountTokenFetch = fetch;
+				own = true;
+			}
+		}
+		if (!own) {
+			return await(fetch);
+		}
+		// keycloak is called outside of the monitor, concurrent lookups wait for the fetch
+		try {
+			long now = System.nanoTime();
+			AccessTokenResponse token = fetchServiceAccountToken(deployment);
+			synchronized (this) {
+				serviceAccountToken = token.getToken();
+				serviceAccountTokenExpiry = now + TimeUnit.SECONDS.toNanos(token.getExpiresIn());
+			}
+			fetch.complete(token.getToken());
+			return token.getToken();
+		} catch (IOException | HttpFailure | RuntimeException | Error e) {
+			fetch.completeExceptionally(e);
+			throw e;
+		} finally {
+			synchronized (this) {
+				serviceAccountTokenFetch = null;
+			}
+		}
+	}
+
+	private static AccessTokenResponse fetchServiceAccountToken(KeycloakDeployment deployment)
+			throws IOException, HttpFailure {
+		HttpPost post = new HttpPost(deployment.getTokenUrl());
+		List<NameValuePair> form = new ArrayList<>();
+		form.add(new BasicNameValuePair(OAuth2Constants.GRANT_TYPE, OAuth2Constants.CLIENT_CREDENTIALS));
+		ClientCredentialsProviderUtils.setClientCredentials(deployment, post, form);
+		post.setEntity(new UrlEncodedFormEntity(form, StandardCharsets.UTF_8));
+		HttpResponse response = deployment.getClient().execute(post);
+		HttpEntity entity = response.getEntity();
+		int status = response.getStatusLine().getStatusCode();
+		if (status != 200) {
+			throw failure(status, entity);
+		}
+		try (InputStream in = entity.getContent()) {
+			return JsonSerialization.readValue(in, AccessTokenResponse.class);
+		}
+	}
+
+	private static <T> T await(CompletableFuture<T> fetch) throws IOException, HttpFailure {
+		try {
+			return fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for keycloak");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HttpFailure) {
+				throw (HttpFailure) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static HttpFailure failure(int status, HttpEntity entity) throws IOException {
+		String body = entity == null ? null : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+		return new HttpFailure(status, body);
+	}
+}
@@ -0,0 +1,202 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.rotation.JWKPublicKeyLocator;
+import org.keycloak.adapters.rotation.PublicKeyLocator;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.security.SecurityRealm;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Keeps the public keys of the realm in memory, so token verification never
+ * waits for the JWKS endpoint of keycloak. The keys are fetched in the
+ * background when the deployment is built, on a schedule, and when a token
+ * signed with an unknown key shows up after a key rotation.
+ */
+final class RealmKeyCache implements PublicKeyLocator {
+
+	private static final Logger LOGGER = Logger.getLogger(RealmKeyCache.class.getName());
+
+	/**
+	 * Minutes between two scheduled refreshes of the realm keys.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long REFRESH_INTERVAL = SystemProperties
+			.getLong(RealmKeyCache.class.getName() + ".refreshInterval", 60L);
+
+	/**
+	 * Milliseconds a verification of a token with an unknown key waits for the
+	 * keys to be refreshed.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long UNKNOWN_KEY_WAIT = SystemProperties
+			.getLong(RealmKeyCache.class.getName() + ".unknownKeyWait", 5000L);
+
+	// the delegate fetches the keys on its own at most once a day, all other
+	// fetches are triggered by this cache, a rotated key is fetched after the
+	// minimum time between JWKS requests of the deployment
+	private static final int DELEGATE_MIN_TIME_BETWEEN_REQUESTS = (int) TimeUnit.DAYS.toSeconds(1);
+
+	private final PublicKeyLocator delegate;
+	private final long minTimeBetweenRequests;
+	private CompletableFuture<Void> refresh;
+	private long lastRefresh;
+	// false until the first fetch is done, the delegate would fetch on its own before
+	private volatile boolean loaded;
+	// kids the delegate returned a key for, their lookup does not wait for a fetch
+	private final Set<String> knownKids = ConcurrentHashMap.newKeySet();
+
+	private RealmKeyCache(PublicKeyLocator delegate, int minTimeBetweenRequests) {
+		this.delegate = delegate;
+		this.minTimeBetweenRequests = TimeUnit.SECONDS.toNanos(minTimeBetweenRequests);
+	}
+
+	/**
+	 * Puts a key cache in front of the JWKS key locator of the deployment and
+	 * starts fetching the keys. Deployments with a configured realm public key
+	 * are left untouched.
+	 *
+	 * @param deployment a freshly built deployment
+	 */
+	static void install(KeycloakDeployment deployment) {
+		PublicKeyLocator locator = deployment.getPublicKeyLocator();
+		if (locator instanceof JWKPublicKeyLocator) {
+			RealmKeyCache cache = new RealmKeyCache(locator, deployment.getMinTimeBetweenJwksRequests());
+			deployment.setMinTimeBetweenJwksRequests(DELEGATE_MIN_TIME_BETWEEN_REQUESTS);
+			deployment.setPublicKeyLocator(cache);
+			cache.refresh(deployment, true);
+		}
+	}
+
+	@Override
+	public PublicKey getPublicKey(String kid, KeycloakDeployment deployment) {
+		if (!loaded) {
+			// requests arriving before the first fetch is done share it
+			if (!await(refresh(deployment, false)) || !loaded) {
+				return null;
+			}
+		} else if ((kid == null || !knownKids.contains(kid)) && !await(running())) {
+			// the delegate is locked while it fetches, even for a lookup
+			return null;
+		}
+		PublicKey publicKey = delegate.getPublicKey(kid, deployment);
+		if (publicKey == null) {
+			// unknown key, e.g. after a key rotation in keycloak
+			LOGGER.log(Level.FINE, "No realm key found for kid {0}, refreshing keys", kid);
+			if (!await(refresh(deployment, false))) {
+				return null;
+			}
+			publicKey = delegate.getPublicKey(kid, deployment);
+		}
+		if (publicKey != null && kid != null) {
+			knownKids.add(kid);
+		}
+		return publicKey;
+	}
+
+	/**
+	 * Waits for a fetch of the realm keys, at most {@link #UNKNOWN_KEY_WAIT}
+	 * milliseconds.
+	 *
+	 * @return false if the fetch is still running
+	 */
+	private static boolean await(CompletableFuture<Void> fetch) {
+		if (fetch == null) {
+			return true;
+		}
+		try {
+			fetch.get(UNKNOWN_KEY_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			LOGGER.log(Level.FINE, "Refresh of the realm keys did not succeed in time", e);
+		}
+		return fetch.isDone();
+	}
+
+	private synchronized CompletableFuture<Void> running() {
+		return refresh;
+	}
+
+	@Override
+	public void reset(KeycloakDeployment deployment) {
+		refresh(deployment, true);
+	}
+
+	/**
+	 * Fetches the realm keys in the background. Concurrent callers share one
+	 * fetch, and unless forced a new fetch is only started after the minimum time
+	 * between JWKS requests of the deployment.
+	 */
+	private synchronized CompletableFuture<Void> refresh(KeycloakDeployment deployment, boolean force) {
+		long now = System.nanoTime();
+		if (refresh != null && (!refresh.isDone() || (!force && now - lastRefresh < minTimeBetweenRequests))) {
+			return refresh;
+		}
+		lastRefresh = now;
+		CompletableFuture<Void> current = new CompletableFuture<>();
+		refresh = current;
+		Computer.threadPoolForRemoting.submit(() -> {
+			try {
+				delegate.reset(deployment);
+				loaded = true;
+				LOGGER.log(Level.FINE, "Refreshed keys of realm {0}", deployment.getRealm());
+				current.complete(null);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Failed to fetch the keys of realm " + deployment.getRealm(), e);
+				current.completeExceptionally(e);
+			}
+		});
+		return current;
+	}
+
+	/**
+	 * Refreshes the realm keys regularly, so a key rotation in keycloak is picked
+	 * up before tokens signed with the new key arrive.
+	 */
+	@Restricted(NoExternalUse.class)
+	@Extension
+	public static final class Refresher extends AsyncPeriodicWork {
+
+		public Refresher() {
+			super("Keycloak realm key refresh");
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return TimeUnit.MINUTES.toMillis(REFRESH_INTERVAL);
+		}
+
+		@Override
+		protected void execute(TaskListener listener) throws IOException, InterruptedException {
+			SecurityRealm sr = Jenkins.get().getSecurityRealm();
+			if (sr instanceof KeycloakSecurityRealm) {
+				for (KeycloakDeployment deployment : ((KeycloakSecurityRealm) sr).getBuiltDeployments()) {
+					PublicKeyLocator locator = deployment.getPublicKeyLocator();
+					if (locator instanceof RealmKeyCache) {
+						locator.reset(deployment);
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,8 +1,8 @@
 package org.jenkinsci.plugins;
 
 import java.io.IOException;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,15 +17,17 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.keycloak.adapters.KeycloakDeployment;
-import org.keycloak.adapters.ServerRequest;
 import org.keycloak.adapters.ServerRequest.HttpFailure;
-import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.common.VerificationException;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.security.SecurityRealm;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
 
 /**
  * Filter to check the validity of the token
@@ -37,6 +39,24 @@ public class RefreshFilter implements Filter {
 
 	private static final Logger LOGGER = Logger.getLogger(RefreshFilter.class.getName());
 
+	/**
+	 * How long (in milliseconds) a request waits for a token refresh which is
+	 * already performed by another request of the same session.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long REFRESH_WAIT_TIMEOUT = SystemProperties
+			.getLong(RefreshFilter.class.getName() + ".refreshWaitTimeout", 10000L);
+
+	/**
+	 * How long (in seconds) after the access token expired a session keeps
+	 * working while keycloak is unavailable.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long GRACE_PERIOD = SystemProperties
+			.getLong(RefreshFilter.class.getName() + ".gracePeriod", 300L);
+
+	private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
 	/**
 	 * Constructor
 	 */
@@ -50,103 +70,261 @@ public class RefreshFilter implements Filter {
 		initCalled = true;
 	}
 
-	private boolean skipUrl(HttpServletRequest paramRequest) {
-		boolean result = false;
-		String pathInfo = paramRequest.getPathInfo();
-		LOGGER.log(Level.FINEST, "Path" + pathInfo);
-		if (pathInfo != null) {
-			result = (pathInfo.endsWith("/logout"))
-					|| pathInfo.endsWith(KeycloakSecurityRealm.JENKINS_FINISH_LOGIN_URL);
-		}
-		return result;
-	}
-
 	@Override
 	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
 			throws IOException, ServletException {
 		LOGGER.log(Level.FINER, "KeycloakFilter entered");
 		Jenkins j = Jenkins.get();
 		SecurityRealm sr = j.getSecurityRealm();
-		if (sr != null) {
-			// only if an instance of KeycloakSecurityRealm is active check token validity
-			if (sr instanceof KeycloakSecurityRealm) {
-				KeycloakSecurityRealm ksr = (KeycloakSecurityRealm) sr;
-				LOGGER.log(Level.FINER, "KeycloakSecurityRealm found");
-				boolean checkTokenValidity = ksr.checkKeycloakOnEachRequest();
-				HttpServletRequest httpRequest = (HttpServletRequest) req;
-				HttpSession session = httpRequest.getSession();
-				Boolean authRequestedAttribute = (Boolean) session
-						.getAttribute(KeycloakSecurityRealm.AUTH_REQUESTED);
-				boolean authenticationRequested = (authRequestedAttribute == null) ? false
-						: authRequestedAttribute.booleanValue();
-				boolean skipUrl = skipUrl(httpRequest);
-				LOGGER.log(Level.FINEST,
-						"RequestPath" + httpRequest.getPathInfo() + " skipUrl" + skipUrl
-								+ " AuthenticationRequested" + authenticationRequested + " CheckRequest"
-								+ checkTokenValidity);
-				// only if a check is configured and the user already logged in and the
-				// requested URL does not end with logout do filtering
-				if (checkTokenValidity && !skipUrl && authenticationRequested) {
-					boolean tokeninvalid = checkTokenValidity(res, ksr);
-					if (tokeninvalid)
-						return;
-				}
-				// normal processing
-				chain.doFilter(req, res);
+		// only if an instance of KeycloakSecurityRealm is active check token validity
+		if (sr instanceof KeycloakSecurityRealm) {
+			LOGGER.log(Level.FINER, "KeycloakSecurityRealm found");
+			doFilter((KeycloakSecurityRealm) sr, req, res, chain);
+		} else {
+			chain.doFilter(req, res);
+		}
+	}
+
+	/**
+	 * Filters a request while the given realm is active.
+	 */
+	void doFilter(KeycloakSecurityRealm ksr, ServletRequest req, ServletResponse res, FilterChain chain)
+			throws IOException, ServletException {
+		// a bearer token authenticates the request wherever it goes, bypassed paths included
+		if (ksr.isKeycloakBearerAuthentication()) {
+			String bearerToken = BearerTokenAuthenticator.getBearerToken((HttpServletRequest) req);
+			if (bearerToken != null) {
+				doFilterBearer(ksr, bearerToken, req, res, chain);
+				return;
+			}
+		}
+		// static resources, agents, webhooks, login and logout need no session token check
+		if (ksr.getBypassRules().matches(((HttpServletRequest) req).getPathInfo())) {
+			chain.doFilter(req, res);
+			return;
+		}
+		if (ksr.isKeycloakPersistSessions() && !isKeycloakAuthenticated()) {
+			restoreSession(ksr, (HttpServletRequest) req, (HttpServletResponse) res);
+		}
+		// only if a check is configured and the user already logged in with keycloak
+		// do filtering, bypassed paths were let through above
+		if (ksr.checkKeycloakOnEachRequest() && isKeycloakAuthenticated()) {
+			HttpServletRequest httpRequest = (HttpServletRequest) req;
+			// never create a session here, anonymous requests do not need one
+			HttpSession session = httpRequest.getSession(false);
+			boolean authenticationRequested = session != null
+					&& Boolean.TRUE.equals(session.getAttribute(KeycloakSecurityRealm.AUTH_REQUESTED));
+			if (LOGGER.isLoggable(Level.FINEST)) {
+				LOGGER.log(Level.FINEST, "RequestPath" + httpRequest.getPathInfo() + " AuthenticationRequested"
+						+ authenticationRequested);
+			}
+			if (authenticationRequested) {
+				boolean tokeninvalid = checkTokenValidity(res, ksr);
+				if (tokeninvalid)
+					return;
 			}
 		}
+		// normal processing
+		chain.doFilter(req, res);
+	}
+
+	/**
+	 * Runs a request authenticated by a bearer token. The authentication only
+	 * lives for this request, the previous security context is restored so no
+	 * session is created or changed.
+	 */
+	private void doFilterBearer(KeycloakSecurityRealm ksr, String bearerToken, ServletRequest req,
+			ServletResponse res, FilterChain chain) throws IOException, ServletException {
+		KeycloakAuthentication auth;
+		try {
+			String tenant = ksr.resolveTenant((HttpServletRequest) req);
+			auth = BearerTokenAuthenticator.authenticate(ksr.getKeycloakDeployment(tenant), tenant, bearerToken);
+		} catch (VerificationException e) {
+			LOGGER.log(Level.FINE, "Bearer token rejected, message is: " + e.getMessage());
+			HttpServletResponse httpRes = (HttpServletResponse) res;
+			httpRes.setHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+			httpRes.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		SecurityContext previous = SecurityContextHolder.getContext();
+		SecurityContextHolder.setContext(new SecurityContextImpl(auth));
+		try {
+			chain.doFilter(req, res);
+		} finally {
+			SecurityContextHolder.setContext(previous);
+		}
+	}
+
+	/**
+	 * Restores the session stored before a restart of Jenkins, if the browser
+	 * sent its cookie. The tokens are refreshed first, so a session which ended
+	 * in keycloak in the meantime is not restored.
+	 */
+	private void restoreSession(KeycloakSecurityRealm ksr, HttpServletRequest req, HttpServletResponse res)
+			throws IOException {
+		String cookie = KeycloakSessionStore.getCookie(req);
+		if (cookie == null) {
+			return;
+		}
+		KeycloakSessionStore store = KeycloakSessionStore.get();
+		KeycloakAuthentication ka = store.restore(cookie);
+		if (ka == null) {
+			res.addCookie(KeycloakSessionStore.cookie(req, "", 0));
+			return;
+		}
+		try {
+			// requests of the same browser share the refresh
+			if (ka.isAccessExpired()
+					&& !ka.refresh(ksr.getKeycloakDeployment(ka.getTenant()), ka.getRefreshToken(),
+							REFRESH_WAIT_TIMEOUT, ksr.validateTokenLocally())) {
+				return;
+			}
+		} catch (HttpFailure | VerificationException e) {
+			LOGGER.log(Level.FINE, "Stored session of " + ka.getName() + " not restored, message is: " + e.getMessage());
+			store.removeCookie(cookie);
+			res.addCookie(KeycloakSessionStore.cookie(req, "", 0));
+			return;
+		} catch (IOException e) {
+			// tried again with the next request
+			LOGGER.log(Level.FINE, "Stored session of " + ka.getName() + " not restored, keycloak is unavailable: "
+					+ e.getMessage());
+			return;
+		}
+		HttpSession session = req.getSession(true);
+		session.setAttribute(KeycloakSecurityRealm.AUTH_REQUESTED, Boolean.TRUE);
+		SecurityContextHolder.getContext().setAuthentication(ka);
+		store.index(ka, session);
+		if (ksr.checkKeycloakOnEachRequest() && ksr.respectAccessTokenTimeout()) {
+			TokenRefreshScheduler.register(ka);
+		}
+		LOGGER.log(Level.FINE, "Restored stored session of {0}", ka.getName());
+	}
+
+	private static boolean isKeycloakAuthenticated() {
+		SecurityContext sc = SecurityContextHolder.getContext();
+		return sc != null && sc.getAuthentication() instanceof KeycloakAuthentication;
 	}
 
 	private boolean checkTokenValidity(ServletResponse res, KeycloakSecurityRealm ksr) throws IOException {
 		boolean tokeninvalid = false;
 		LOGGER.log(Level.FINE, "KeycloakFilter is active");
-		KeycloakDeployment kd = ksr.getKeycloakDeployment();
 		SecurityContext sc = SecurityContextHolder.getContext();
 		if (sc != null) {
 			Authentication auth = sc.getAuthentication();
 			if (auth instanceof KeycloakAuthentication) {
 				KeycloakAuthentication ka = (KeycloakAuthentication) auth;
-				// if the refreshToken is already expired, it can not be used anymore
-				// so automatically log out
-				if (ka.isRefreshExpired()) {
-					LOGGER.log(Level.FINE,
-							"Keycloak refresh token is expired. Refresh token expiry "
-									+ ka.getAccessTokenResponse().getRefreshExpiresIn() + " seconds. Last refresh "
-									+ ka.getLastRefresh() + ". Current Time " + new Date());
-					tokeninvalid = true;
-					redirectToJenkinsLogoutUrl(res);
-				}
+				TokenCheckEvent event = new TokenCheckEvent();
+				event.begin();
 				try {
-					boolean respectAccessTokenTimeout = ksr.respectAccessTokenTimeout();
-					Calendar secondsCheck = Calendar.getInstance();
-					secondsCheck.add(Calendar.SECOND, -1);
-					boolean newRefresh = secondsCheck.after(ka.getLastRefreshDateAsCalendar());
-					boolean accessTokenExpired = ka.isAccessExpired();
-					// if the access token timeout should be respected and it is expired then
-					// refresh it
-					// or
-					// if the access token timeout should not be respected, but the last refresh is
-					// older than 1 second then refresh it.
-					if ((respectAccessTokenTimeout && accessTokenExpired)
-							|| (!respectAccessTokenTimeout && newRefresh)) {
-						LOGGER.log(Level.FINE,
-								"KeycloakFilter refresh token. Respect access token timeout: "
-										+ respectAccessTokenTimeout + ". Access token expired " + accessTokenExpired
-										+ ". Renew after 1 second:" + newRefresh);
-						AccessTokenResponse atr = ServerRequest.invokeRefresh(kd, ka.getRefreshToken());
-						ka.setAccessTokenResponse(atr);
-					}
-				} catch (HttpFailure e) {
-					LOGGER.log(Level.INFO, "Refresh Token failed, message is: " + e.getMessage() + ", error is:"
-							+ e.getError() + ", statuscode is:" + e.getStatus());
-					tokeninvalid = true;
-					redirectToJenkinsLogoutUrl(res);
+					tokeninvalid = checkTokenValidity(res, ksr, ka, event);
+				} finally {
+					event.end(ka);
+				}
+			}
+		}
+		return tokeninvalid;
+	}
+
+	private boolean checkTokenValidity(ServletResponse res, KeycloakSecurityRealm ksr, KeycloakAuthentication ka,
+			TokenCheckEvent event) throws IOException {
+		boolean tokeninvalid = false;
+		KeycloakDeployment kd = ksr.getKeycloakDeployment(ka.getTenant());
+		ka.touch();
+		long now = System.nanoTime();
+		// if the refreshToken is already expired, it can not be used anymore
+		// so automatically log out
+		if (ka.isRefreshExpired(now)) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, "Keycloak refresh token is expired. Last refresh " + ka.getLastRefresh()
+						+ ". Current Time " + new Date());
+			}
+			event.decide(TokenCheckEvent.LOGOUT, "refreshExpired", null);
+			redirectToJenkinsLogoutUrl(res);
+			return true;
+		}
+		try {
+			String seenRefreshToken = ka.getRefreshToken();
+			boolean respectAccessTokenTimeout = ksr.respectAccessTokenTimeout();
+			boolean newRefresh = ka.isLastRefreshOlderThan(ONE_SECOND, now);
+			boolean accessTokenExpired = ka.isAccessExpired(now);
+			// if the access token timeout should be respected and it is expired then
+			// refresh it
+			// or
+			// if the access token timeout should not be respected, but the last refresh is
+			// older than 1 second then refresh it.
+			if ((respectAccessTokenTimeout && accessTokenExpired)
+					|| (!respectAccessTokenTimeout && newRefresh)) {
+				LOGGER.log(Level.FINE,
+						"KeycloakFilter refresh token. Respect access token timeout: "
+								+ respectAccessTokenTimeout + ". Access token expired " + accessTokenExpired
+								+ ". Renew after 1 second:" + newRefresh);
+				// concurrent requests of the same session share a single refresh
+				boolean refreshed = ka.refresh(kd, seenRefreshToken, REFRESH_WAIT_TIMEOUT,
+						ksr.validateTokenLocally());
+				event.decide(TokenCheckEvent.REFRESH,
+						respectAccessTokenTimeout ? "accessExpired" : "refreshEachRequest", null);
+				if (!refreshed) {
+					LOGGER.log(Level.FINE, "KeycloakFilter token refresh of a concurrent request did not finish in time");
+					event.decide(TokenCheckEvent.KEEP, "concurrentRefreshPending", null);
 				}
+				if (respectAccessTokenTimeout) {
+					// restart the background refresh of a session which was idle
+					TokenRefreshScheduler.register(ka);
+				}
+			}
+		} catch (HttpFailure e) {
+			if (KeycloakCircuitBreaker.isUnavailable(e) && isWithinGracePeriod(ka, now)) {
+				LOGGER.log(Level.FINE, "Keycloak is unavailable, status is: " + e.getStatus()
+						+ ", session of " + ka.getName() + " kept within grace period");
+				event.decide(TokenCheckEvent.KEEP, "gracePeriod", e);
+			} else {
+				LOGGER.log(Level.INFO, "Refresh Token failed, message is: " + e.getMessage() + ", error is:"
+						+ e.getError() + ", statuscode is:" + e.getStatus());
+				tokeninvalid = true;
+				event.decide(TokenCheckEvent.LOGOUT, "refreshFailed", e);
+				redirectToJenkinsLogoutUrl(res);
 			}
+		} catch (IOException e) {
+			if (isWithinGracePeriod(ka, now)) {
+				LOGGER.log(Level.FINE, "Keycloak is unavailable: " + e.getMessage() + ", session of "
+						+ ka.getName() + " kept within grace period");
+				event.decide(TokenCheckEvent.KEEP, "gracePeriod", e);
+			} else if (e instanceof KeycloakAdmission.RejectedException) {
+				// a logout would send the user through the login, adding to the load
+				LOGGER.log(Level.FINE, "Refresh of " + ka.getName() + " rejected, too many calls to keycloak");
+				tokeninvalid = true;
+				event.decide(TokenCheckEvent.RETRY, "admissionRejected", e);
+				retryLater(res);
+			} else {
+				LOGGER.log(Level.INFO, "Refresh Token failed, keycloak is unavailable: " + e.getMessage());
+				tokeninvalid = true;
+				event.decide(TokenCheckEvent.LOGOUT, "keycloakUnavailable", e);
+				redirectToJenkinsLogoutUrl(res);
+			}
+		} catch (VerificationException e) {
+			LOGGER.log(Level.INFO, "Refreshed access token is not valid, message is: " + e.getMessage());
+			tokeninvalid = true;
+			event.decide(TokenCheckEvent.LOGOUT, "invalidAccessToken", e);
+			redirectToJenkinsLogoutUrl(res);
 		}
 		return tokeninvalid;
 	}
 
+	/**
+	 * A session keeps working while keycloak is unavailable, as long as its
+	 * access token is valid or expired less than the grace period ago.
+	 */
+	private static boolean isWithinGracePeriod(KeycloakAuthentication ka, long nowNanos) {
+		return !ka.isAccessExpired(nowNanos - TimeUnit.SECONDS.toNanos(GRACE_PERIOD));
+	}
+
+	private void retryLater(ServletResponse res) throws IOException {
+		res.reset();
+		HttpServletResponse httpRes = (HttpServletResponse) res;
+		httpRes.setHeader("Retry-After", String.valueOf(KeycloakAdmission.RETRY_AFTER));
+		httpRes.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests to keycloak in progress, please try again later.");
+	}
+
 	private void redirectToJenkinsLogoutUrl(ServletResponse res) throws IOException {
 		//reset everything done before and redirect
 		res.reset();
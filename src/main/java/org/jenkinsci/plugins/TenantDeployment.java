@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.KeycloakDeploymentBuilder;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+
+import hudson.Util;
+
+/**
+ * A keycloak deployment built from the keycloak JSON of the realm or of a
+ * tenant, together with the HTTP client it owns. It is built once and shared
+ * by all realms with the same keycloak JSON and HTTP client settings, so a
+ * realm saved from the configuration form keeps the connection pool and realm
+ * keys of the installed one. Deployments are only retired once the security
+ * realm of Jenkins was replaced and the new one does not use them anymore.
+ */
+final class TenantDeployment {
+
+	// the deployments not retired yet by the hash of their configuration
+	private static final Map<String, TenantDeployment> BY_CONFIG = new HashMap<>();
+
+	private final String configKey;
+	private final KeycloakDeployment deployment;
+	private final KeycloakHttpClient httpClient;
+	private volatile boolean retired;
+
+	private TenantDeployment(String configKey, KeycloakDeployment deployment, KeycloakHttpClient httpClient) {
+		this.configKey = configKey;
+		this.deployment = deployment;
+		this.httpClient = httpClient;
+	}
+
+	/**
+	 * Returns the deployment for a keycloak JSON. A deployment not retired yet
+	 * with the same configuration is reused with its connection pool and realm
+	 * keys, otherwise a new one is built.
+	 *
+	 * @param keycloakJson the keycloak JSON
+	 * @param config the HTTP client settings of the realm
+	 * @return the deployment
+	 * @throws IOException if the keycloak JSON cannot be parsed
+	 */
+	static synchronized TenantDeployment obtain(String keycloakJson, KeycloakHttpClientConfig config)
+			throws IOException {
+		AdapterConfig adapterConfig = JsonSerialization.readValue(keycloakJson, AdapterConfig.class);
+		KeycloakHttpClient.configure(adapterConfig, config);
+		String configKey = configKey(adapterConfig, config);
+		TenantDeployment live = BY_CONFIG.get(configKey);
+		if (live != null && !live.isRetired()) {
+			return live;
+		}
+		KeycloakDeployment deployment = KeycloakDeploymentBuilder.build(adapterConfig);
+		KeycloakHttpClient httpClient = KeycloakHttpClient.install(deployment, adapterConfig, config);
+		RealmKeyCache.install(deployment);
+		TenantDeployment built = new TenantDeployment(configKey, deployment, httpClient);
+		BY_CONFIG.put(configKey, built);
+		return built;
+	}
+
+	/**
+	 * Hashes the parsed configuration, so the key is independent of the
+	 * formatting of the JSON and does not keep the client secret in memory.
+	 *
+	 * @param adapterConfig the parsed keycloak JSON with the HTTP client
+	 *            settings applied
+	 * @param config the HTTP client settings of the realm
+	 * @return the SHA-256 hash of the configuration
+	 * @throws IOException if the configuration cannot be serialized
+	 */
+	static String configKey(AdapterConfig adapterConfig, KeycloakHttpClientConfig config) throws IOException {
+		String normalized = JsonSerialization.writeValueAsString(adapterConfig) + " connectionRequestTimeout="
+				+ config.getConnectionRequestTimeout() + " keepAlive=" + config.getKeepAlive();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Util.toHexString(digest.digest(normalized.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Retires all deployments except those of the installed realm. They are
+	 * not reused anymore and their HTTP clients are closed, after the requests
+	 * still using them had time to finish.
+	 *
+	 * @param inUse the deployments of the installed realm
+	 * @return whether a deployment was retired
+	 */
+	static synchronized boolean retireAllExcept(Collection<TenantDeployment> inUse) {
+		boolean retired = false;
+		for (Iterator<TenantDeployment> it = BY_CONFIG.values().iterator(); it.hasNext();) {
+			TenantDeployment deployment = it.next();
+			if (!inUse.contains(deployment)) {
+				it.remove();
+				deployment.retired = true;
+				if (deployment.httpClient != null) {
+					deployment.httpClient.retire();
+				}
+				retired = true;
+			}
+		}
+		return retired;
+	}
+
+	/**
+	 * @return whether the deployment was retired and has to be built again
+	 */
+	boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * @return the keycloak deployment
+	 */
+	KeycloakDeployment getDeployment() {
+		return deployment;
+	}
+
+	/**
+	 * @return the managed HTTP client, or null if the client of keycloak is used
+	 */
+	KeycloakHttpClient getHttpClient() {
+		return httpClient;
+	}
+}
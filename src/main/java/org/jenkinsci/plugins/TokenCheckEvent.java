@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event of the token check of the {@link RefreshFilter}
+ * for a request, with its decision and the reason for it.
+ */
+@Name("org.jenkinsci.plugins.keycloak.TokenCheck")
+@Label("Keycloak Token Check")
+@Category({ "Jenkins", "Keycloak" })
+@Description("The check of the keycloak tokens of a request by the refresh filter")
+@StackTrace(false)
+final class TokenCheckEvent extends Event {
+
+	/** the tokens are used as they are */
+	static final String KEEP = "keep";
+	/** the tokens were refreshed */
+	static final String REFRESH = "refresh";
+	/** the user is logged out */
+	static final String LOGOUT = "logout";
+	/** the request is answered with 503 and Retry-After */
+	static final String RETRY = "retry";
+
+	@Label("User")
+	String user;
+
+	@Label("Tenant")
+	String tenant;
+
+	@Label("Decision")
+	@Description("keep, refresh, logout or retry")
+	String decision = KEEP;
+
+	@Label("Reason")
+	String reason = "valid";
+
+	@Label("Outcome")
+	@Description("Outcome of the refresh, success if none was needed")
+	String outcome;
+
+	@Label("HTTP Status")
+	@Description("Status of the keycloak answer to the refresh, 0 if keycloak was not called or did not answer")
+	int status;
+
+	// not recorded, the outcome and status are taken from it
+	private transient Throwable failure;
+
+	/**
+	 * Records the decision of the token check.
+	 *
+	 * @param decision the decision
+	 * @param reason the reason for the decision
+	 * @param failure the failure of the refresh, null if it succeeded or none
+	 *            was needed
+	 */
+	void decide(String decision, String reason, Throwable failure) {
+		this.decision = decision;
+		this.reason = reason;
+		this.failure = failure;
+	}
+
+	/**
+	 * Ends the token check and commits the event if it is recorded.
+	 *
+	 * @param ka the authentication of the request
+	 */
+	void end(KeycloakAuthentication ka) {
+		end();
+		if (shouldCommit()) {
+			this.user = ka.getName();
+			this.tenant = ka.getTenant();
+			this.outcome = KeycloakMetrics.outcome(failure);
+			// keycloak is only called for a refresh
+			this.status = REFRESH.equals(decision) || failure != null ? KeycloakOperationEvent.status(failure) : 0;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package org.jenkinsci.plugins;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.security.SecurityRealm;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Refreshes the tokens of active sessions in the background shortly before the
+ * access token expires, so request threads do not have to wait for keycloak.
+ * Sessions which were not used for a while are left to expire.
+ */
+final class TokenRefreshScheduler {
+
+	private static final Logger LOGGER = Logger.getLogger(TokenRefreshScheduler.class.getName());
+
+	/**
+	 * Whether tokens are refreshed in the background at all.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ boolean ENABLED = SystemProperties
+			.getBoolean(TokenRefreshScheduler.class.getName() + ".enabled", true);
+
+	/**
+	 * Seconds before the access token expires at which the refresh is started.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long REFRESH_MARGIN = SystemProperties
+			.getLong(TokenRefreshScheduler.class.getName() + ".refreshMargin", 30L);
+
+	/**
+	 * Maximum number of seconds the refresh is started earlier than the margin, to
+	 * spread the refreshes of sessions created at the same time.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long REFRESH_JITTER = SystemProperties
+			.getLong(TokenRefreshScheduler.class.getName() + ".refreshJitter", 10L);
+
+	/**
+	 * Seconds after the last request of a session after which its tokens are no
+	 * longer refreshed in the background.
+	 */
+	@SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "for script console")
+	static /* non-final for script console */ long IDLE_TIMEOUT = SystemProperties
+			.getLong(TokenRefreshScheduler.class.getName() + ".idleTimeout", 600L);
+
+	private static final ScheduledThreadPoolExecutor EXECUTOR = createExecutor();
+
+	private TokenRefreshScheduler() {
+	}
+
+	private static ScheduledThreadPoolExecutor createExecutor() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+				SystemProperties.getInteger(TokenRefreshScheduler.class.getName() + ".poolSize", 2),
+				new NamingThreadFactory(new DaemonThreadFactory(), "Keycloak token refresh"));
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+
+	/**
+	 * Starts the background refresh of the given authentication unless it is
+	 * already running.
+	 *
+	 * @param auth the authentication of an active session
+	 */
+	static void register(KeycloakAuthentication auth) {
+		if (ENABLED && auth.startBackgroundRefresh()) {
+			schedule(new RefreshTask(auth), auth);
+		}
+	}
+
+	private static void schedule(RefreshTask task, KeycloakAuthentication auth) {
+		if (!auth.hasDeadlines()) {
+			auth.stopBackgroundRefresh();
+			return;
+		}
+		long delay = delayMillis(auth);
+		if (delay <= 0) {
+			// token lifetime is too short for a background refresh, leave it to the request
+			LOGGER.log(Level.FINE, "Access token of {0} expires too soon for a background refresh", auth.getName());
+			auth.stopBackgroundRefresh();
+			return;
+		}
+		task.seenRefreshToken = auth.getRefreshToken();
+		EXECUTOR.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param auth an authentication with known deadlines
+	 * @return the milliseconds until its background refresh, the margin and a
+	 *         random jitter before the access token expires
+	 */
+	static long delayMillis(KeycloakAuthentication auth) {
+		long delay = auth.getAccessExpiresInMillis() - TimeUnit.SECONDS.toMillis(REFRESH_MARGIN);
+		if (REFRESH_JITTER > 0) {
+			delay -= ThreadLocalRandom.current().nextLong(TimeUnit.SECONDS.toMillis(REFRESH_JITTER) + 1);
+		}
+		return delay;
+	}
+
+	/**
+	 * @return the number of scheduled background refreshes
+	 */
+	static int getScheduled() {
+		return EXECUTOR.getQueue().size();
+	}
+
+	static final class RefreshTask implements Runnable {
+
+		private final WeakReference<KeycloakAuthentication> auth;
+		private volatile String seenRefreshToken;
+
+		RefreshTask(KeycloakAuthentication auth) {
+			this.auth = new WeakReference<>(auth);
+		}
+
+		@Override
+		public void run() {
+			KeycloakAuthentication ka = auth.get();
+			if (ka == null) {
+				return;
+			}
+			if (ka.isIdle(TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT))) {
+				// the next request of the session starts the background refresh again
+				LOGGER.log(Level.FINE, "Session of {0} is idle, background refresh stopped", ka.getName());
+				ka.stopBackgroundRefresh();
+				return;
+			}
+			KeycloakSecurityRealm ksr = activeRealm();
+			if (ksr == null) {
+				ka.stopBackgroundRefresh();
+				return;
+			}
+			try {
+				if (seenRefreshToken != null && seenRefreshToken.equals(ka.getRefreshToken())) {
+					KeycloakDeployment kd = ksr.getKeycloakDeployment(ka.getTenant());
+					ka.refresh(kd, seenRefreshToken, RefreshFilter.REFRESH_WAIT_TIMEOUT, ksr.validateTokenLocally());
+					LOGGER.log(Level.FINE, "Refreshed token of {0} in background", ka.getName());
+				}
+				// else the token was refreshed by a request in the meantime
+				schedule(this, ka);
+			} catch (HttpFailure e) {
+				// leave it to the next request to log out the user
+				LOGGER.log(Level.FINE, "Background refresh of " + ka.getName() + " failed, error is:" + e.getError()
+						+ ", statuscode is:" + e.getStatus());
+				ka.stopBackgroundRefresh();
+			} catch (Exception e) {
+				LOGGER.log(Level.FINE, "Background refresh of " + ka.getName() + " failed", e);
+				ka.stopBackgroundRefresh();
+			}
+		}
+
+		private static KeycloakSecurityRealm activeRealm() {
+			Jenkins j = Jenkins.getInstanceOrNull();
+			if (j == null) {
+				return null;
+			}
+			SecurityRealm sr = j.getSecurityRealm();
+			if (sr instanceof KeycloakSecurityRealm) {
+				KeycloakSecurityRealm ksr = (KeycloakSecurityRealm) sr;
+				// without validation tokens are never refreshed, without respecting the
+				// timeout they are refreshed on each request anyway
+				if (ksr.checkKeycloakOnEachRequest() && ksr.respectAccessTokenTimeout()) {
+					return ksr;
+				}
+			}
+			return null;
+		}
+	}
+}
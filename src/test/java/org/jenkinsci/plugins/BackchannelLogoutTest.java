@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins;
+
+import java.lang.ref.Reference;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpSession;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.common.VerificationException;
+import org.keycloak.common.crypto.CryptoIntegration;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.AsymmetricSignatureSignerContext;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.LogoutToken;
+
+import static org.junit.Assert.*;
+
+public class BackchannelLogoutTest {
+
+    private static final String EVENT = "http://schemas.openid.net/event/backchannel-logout";
+
+    private static KeyPair keyPair;
+    private static KeycloakSecurityRealm realm;
+    private static KeycloakDeployment deployment;
+
+    @BeforeClass
+    public static void setUpRealm() throws Exception {
+        CryptoIntegration.init(BackchannelLogoutTest.class.getClassLoader());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        String json = "{\"realm\": \"master\",\"auth-server-url\": \"https://keycloak.example.com/auth/\","
+                + "\"ssl-required\": \"external\",\"resource\": \"ci-example-com\",\"realm-public-key\": \""
+                + Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()) + "\"}";
+        realm = new KeycloakSecurityRealm("", json, true, true);
+        deployment = realm.getKeycloakDeployment();
+    }
+
+    @Test
+    public void valid_logout_token_invalidates_the_indexed_sessions() throws Exception {
+        AtomicBoolean loggedOut = new AtomicBoolean();
+        AtomicBoolean other = new AtomicBoolean();
+        // held by the servlet container, the index only references them weakly
+        HttpSession loggedOutSession = StubKeycloak.session(loggedOut);
+        HttpSession otherSession = StubKeycloak.session(other);
+        KeycloakSessionIndex.get().register("sid-valid", "alice-id", loggedOutSession);
+        KeycloakSessionIndex.get().register("sid-other", "alice-id", otherSession);
+
+        realm.doBackchannelLogout(StubKeycloak.staplerRequest(Map.of("logout_token", sign(logoutToken("sid-valid", "alice-id")))));
+        assertTrue(loggedOut.get());
+        // only the keycloak session named in the token
+        assertFalse(other.get());
+
+        // without sid all sessions of the subject end
+        realm.doBackchannelLogout(StubKeycloak.staplerRequest(Map.of("logout_token", sign(logoutToken(null, "alice-id")))));
+        assertTrue(other.get());
+        Reference.reachabilityFence(loggedOutSession);
+        Reference.reachabilityFence(otherSession);
+    }
+
+    @Test
+    public void invalid_logout_token_keeps_the_sessions() throws Exception {
+        AtomicBoolean invalidated = new AtomicBoolean();
+        HttpSession session = StubKeycloak.session(invalidated);
+        KeycloakSessionIndex.get().register("sid-kept", "bob-id", session);
+        LogoutToken token = logoutToken("sid-kept", "bob-id");
+        token.audience("other-client");
+
+        realm.doBackchannelLogout(StubKeycloak.staplerRequest(Map.of("logout_token", sign(token))));
+        realm.doBackchannelLogout(StubKeycloak.staplerRequest(Map.of()));
+        assertFalse(invalidated.get());
+        assertEquals(1, KeycloakSessionIndex.get().invalidateSessionId("sid-kept"));
+        Reference.reachabilityFence(session);
+    }
+
+    @Test
+    public void token_for_another_client_is_rejected() {
+        LogoutToken token = logoutToken("sid-1", "carol-id");
+        token.audience("other-client");
+        assertRejected(token);
+    }
+
+    @Test
+    public void token_without_logout_event_is_rejected() {
+        LogoutToken token = new LogoutToken();
+        token.issuer(deployment.getRealmInfoUrl());
+        token.audience(deployment.getResourceName());
+        token.subject("carol-id");
+        token.setSid("sid-1");
+        assertRejected(token);
+    }
+
+    @Test
+    public void token_without_sid_and_sub_is_rejected() {
+        assertRejected(logoutToken(null, null));
+    }
+
+    @Test
+    public void token_of_another_realm_is_rejected() {
+        LogoutToken token = logoutToken("sid-1", "carol-id");
+        token.issuer("https://keycloak.example.com/auth/realms/other");
+        assertRejected(token);
+    }
+
+    private static void assertRejected(LogoutToken token) {
+        try {
+            KeycloakSecurityRealm.verifyLogoutToken(sign(token), deployment);
+            fail("logout token should be rejected");
+        } catch (VerificationException e) {
+            // expected
+        }
+    }
+
+    private static LogoutToken logoutToken(String sid, String subject) {
+        LogoutToken token = new LogoutToken();
+        token.issuer(deployment.getRealmInfoUrl());
+        token.audience(deployment.getResourceName());
+        token.iat(System.currentTimeMillis() / 1000);
+        token.subject(subject);
+        token.setSid(sid);
+        token.putEvents(EVENT, Map.of());
+        return token;
+    }
+
+    private static String sign(LogoutToken token) {
+        KeyWrapper key = new KeyWrapper();
+        key.setAlgorithm(Algorithm.RS256);
+        key.setKid("test-key");
+        key.setPrivateKey(keyPair.getPrivate());
+        return new JWSBuilder().kid(key.getKid()).jsonContent(token).sign(new AsymmetricSignatureSignerContext(key));
+    }
+}
@@ -0,0 +1,140 @@
+package org.jenkinsci.plugins;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.KeycloakDeploymentBuilder;
+import org.keycloak.common.VerificationException;
+import org.keycloak.common.crypto.CryptoIntegration;
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.AsymmetricSignatureSignerContext;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import static org.junit.Assert.*;
+
+public class BearerTokenAuthenticatorTest {
+
+    private static KeyPair keyPair;
+    private static String json;
+    private static KeycloakDeployment deployment;
+
+    @BeforeClass
+    public static void setUpRealm() throws Exception {
+        CryptoIntegration.init(BearerTokenAuthenticatorTest.class.getClassLoader());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        keyPair = generator.generateKeyPair();
+        json = "{\"realm\": \"master\",\"auth-server-url\": \"https://keycloak.example.com/auth/\","
+                + "\"ssl-required\": \"external\",\"resource\": \"ci-example-com\",\"realm-public-key\": \""
+                + Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()) + "\"}";
+        deployment = KeycloakDeploymentBuilder.build(JsonSerialization.readValue(json, AdapterConfig.class));
+    }
+
+    @Test
+    public void valid_token_authenticates_its_user() throws Exception {
+        AccessToken token = accessToken("alice", 300);
+        token.setRealmAccess(new AccessToken.Access().addRole("admin"));
+
+        KeycloakAuthentication auth = BearerTokenAuthenticator.authenticate(deployment, null, sign(token));
+        assertEquals("alice", auth.getName());
+        assertTrue(auth.getAuthorities().contains(new SimpleGrantedAuthority("admin")));
+        assertNull(auth.getRefreshToken());
+        assertFalse(auth.isAccessExpired());
+    }
+
+    @Test
+    public void repeated_calls_share_the_verified_token() throws Exception {
+        String token = sign(accessToken("bob", 300));
+        assertSame(BearerTokenAuthenticator.authenticate(deployment, null, token),
+                BearerTokenAuthenticator.authenticate(deployment, null, token));
+    }
+
+    @Test(expected = VerificationException.class)
+    public void expired_token_is_rejected() throws Exception {
+        BearerTokenAuthenticator.authenticate(deployment, null, sign(accessToken("carol", -60)));
+    }
+
+    @Test(expected = VerificationException.class)
+    public void tampered_token_is_rejected() throws Exception {
+        String token = sign(accessToken("dave", 300));
+        BearerTokenAuthenticator.authenticate(deployment, null, token.substring(0, token.length() - 4) + "AAAA");
+    }
+
+    @Test
+    public void token_authorized_for_the_client_is_accepted() throws Exception {
+        AccessToken token = accessToken("erin", 300);
+        token.audience((String[]) null);
+        token.issuedFor("ci-example-com");
+        assertEquals("erin", BearerTokenAuthenticator.authenticate(deployment, null, sign(token)).getName());
+    }
+
+    @Test(expected = VerificationException.class)
+    public void token_of_another_client_is_rejected() throws Exception {
+        AccessToken token = accessToken("frank", 300);
+        token.audience("other-client");
+        token.issuedFor("other-client");
+        BearerTokenAuthenticator.authenticate(deployment, null, sign(token));
+    }
+
+    @Test
+    public void request_with_a_token_of_another_client_is_unauthorized() throws Exception {
+        KeycloakSecurityRealm ksr = realm();
+        AccessToken token = accessToken("grace", 300);
+        token.audience("other-client");
+        token.issuedFor("other-client");
+        AtomicInteger error = new AtomicInteger();
+        AtomicBoolean passed = new AtomicBoolean();
+        new RefreshFilter().doFilter(ksr, StubKeycloak.request("/job/example/api/json", null, "Bearer " + sign(token)),
+                StubKeycloak.response(error), (req, res) -> passed.set(true));
+        assertEquals(401, error.get());
+        assertFalse(passed.get());
+    }
+
+    @Test
+    public void only_bearer_headers_carry_a_token() {
+        assertEquals("abc", BearerTokenAuthenticator.getBearerToken(StubKeycloak.request("/", null, "Bearer abc")));
+        assertNull(BearerTokenAuthenticator.getBearerToken(StubKeycloak.request("/", null, "Basic abc")));
+        assertNull(BearerTokenAuthenticator.getBearerToken(StubKeycloak.request("/", null, null)));
+    }
+
+    /**
+     * @return a realm accepting bearer tokens signed with the key of this test
+     */
+    static KeycloakSecurityRealm realm() throws Exception {
+        KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", json, true, true);
+        ksr.setKeycloakBearerAuthentication(true);
+        return ksr;
+    }
+
+    static AccessToken accessToken(String userName, long expiresIn) {
+        long now = System.currentTimeMillis() / 1000;
+        AccessToken token = new AccessToken();
+        token.issuer(deployment.getRealmInfoUrl());
+        token.subject(userName + "-id");
+        token.type("Bearer");
+        token.iat(now);
+        token.exp(now + expiresIn);
+        token.setPreferredUsername(userName);
+        token.audience("ci-example-com");
+        return token;
+    }
+
+    static String sign(AccessToken token) {
+        KeyWrapper key = new KeyWrapper();
+        key.setAlgorithm(Algorithm.RS256);
+        key.setKid("test-key");
+        key.setPrivateKey(keyPair.getPrivate());
+        return new JWSBuilder().kid(key.getKid()).jsonContent(token).sign(new AsymmetricSignatureSignerContext(key));
+    }
+}
@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins;
+
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this plugin. It is only executed with the
+ * <code>benchmark</code> profile: <code>mvn test -Dbenchmark</code>. A subset
+ * can be selected with <code>-Dbenchmark.include=&lt;regex&gt;</code>. Besides
+ * the throughput the GC profiler reports the allocation rate per operation
+ * (<code>gc.alloc.rate.norm</code>), results are written to
+ * <code>target/jmh-report.json</code>.
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark"))
+                .forks(1)
+                .addProfiler(GCProfiler.class)
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json")
+                .build();
+        new Runner(options).run();
+    }
+}
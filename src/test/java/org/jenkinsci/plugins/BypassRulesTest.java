@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BypassRulesTest {
+
+    @Test
+    public void defaults_cover_resources_agents_webhooks_and_login() {
+        BypassRules rules = BypassRules.compile(null);
+        assertTrue(rules.matches("/static/abcdef/images/logo.png"));
+        assertTrue(rules.matches("/adjuncts/abcdef/lib/form.js"));
+        assertTrue(rules.matches("/tcpSlaveAgentListener/"));
+        assertTrue(rules.matches("/github-webhook/"));
+        assertTrue(rules.matches("/logout"));
+        assertTrue(rules.matches("/securityRealm/finishLogin"));
+
+        assertFalse(rules.matches("/job/example/"));
+        assertFalse(rules.matches("/job/static/"));
+        assertFalse(rules.matches("/logout/more"));
+        assertFalse(rules.matches("/"));
+        assertFalse(rules.matches(""));
+        assertFalse(rules.matches(null));
+    }
+
+    @Test
+    public void configured_prefixes_and_suffixes_are_added() {
+        BypassRules rules = BypassRules.compile("# notifications from git\n/git/notifyCommit\n\n  */api/json  \n/plugin/*");
+        assertTrue(rules.matches("/git/notifyCommit?url=x"));
+        assertTrue(rules.matches("/job/example/api/json"));
+        assertTrue(rules.matches("/plugin/keycloak/images/logo.png"));
+        assertTrue(rules.matches("/static/abcdef/images/logo.png"));
+        assertFalse(rules.matches("/git/"));
+        assertFalse(rules.matches("/job/example/api/xml"));
+    }
+
+    @Test
+    public void comments_and_blank_lines_are_ignored() {
+        assertEquals(List.of("/a", "*b"), BypassRules.parse(" /a \r\n# c\n\n*b"));
+        assertSame(BypassRules.compile(null), BypassRules.compile("# nothing\n"));
+    }
+
+    @Test
+    public void rules_matching_everything_are_ignored() {
+        BypassRules rules = BypassRules.compile("*\nrelative/path");
+        assertFalse(rules.matches("/job/example/"));
+    }
+}
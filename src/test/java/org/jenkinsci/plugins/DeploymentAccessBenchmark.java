@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Contention benchmark for {@link KeycloakSecurityRealm#getKeycloakDeployment()}
+ * which is called by the {@link RefreshFilter} on each request. The
+ * <code>synchronized*</code> benchmarks reproduce the former realm monitor for
+ * comparison, the throughput of the lock-free read should scale with the
+ * number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DeploymentAccessBenchmark {
+
+    static final String KEYCLOAK_JSON = "{\"realm\": \"master\",\"auth-server-url\": \"https://keycloak.example.com/auth/\",\"ssl-required\": \"external\",\"resource\": \"ci-example-com\",\"credentials\": {\"secret\": \"secret-secret-secret\"},\"confidential-port\": 0}";
+
+    private KeycloakSecurityRealm realm;
+
+    @Setup
+    public void setup() throws Exception {
+        realm = new KeycloakSecurityRealm("", KEYCLOAK_JSON, true, true);
+        realm.getKeycloakDeployment();
+    }
+
+    private KeycloakDeployment synchronizedRead() throws IOException {
+        synchronized (realm) {
+            return realm.getKeycloakDeployment();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public KeycloakDeployment lockFree1() throws IOException {
+        return realm.getKeycloakDeployment();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public KeycloakDeployment lockFree4() throws IOException {
+        return realm.getKeycloakDeployment();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public KeycloakDeployment lockFreeMax() throws IOException {
+        return realm.getKeycloakDeployment();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public KeycloakDeployment synchronized1() throws IOException {
+        return synchronizedRead();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public KeycloakDeployment synchronized4() throws IOException {
+        return synchronizedRead();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public KeycloakDeployment synchronizedMax() throws IOException {
+        return synchronizedRead();
+    }
+}
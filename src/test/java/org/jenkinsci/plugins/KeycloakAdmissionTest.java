@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeycloakAdmissionTest {
+
+    @Test
+    public void queued_calls_get_a_released_slot() throws Exception {
+        KeycloakAdmission admission = new KeycloakAdmission(1);
+        admission.acquire();
+        assertEquals(1, admission.getActive());
+
+        CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.call(() -> "token");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (admission.getQueued() == 0) {
+            Thread.sleep(10);
+        }
+        admission.release();
+        assertEquals("token", queued.get(10, TimeUnit.SECONDS));
+        assertEquals(0, admission.getQueued());
+        assertEquals(0, admission.getActive());
+    }
+
+    @Test
+    public void calls_are_rejected_when_the_queue_is_full() throws Exception {
+        int maxQueue = KeycloakAdmission.MAX_QUEUE;
+        KeycloakAdmission.MAX_QUEUE = 0;
+        try {
+            KeycloakAdmission admission = new KeycloakAdmission(1);
+            admission.acquire();
+            long start = System.nanoTime();
+            try {
+                admission.acquire();
+                fail("call should be rejected");
+            } catch (KeycloakAdmission.RejectedException e) {
+                // expected
+            }
+            // without waiting for the queue timeout
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(KeycloakAdmission.QUEUE_TIMEOUT));
+            assertEquals(1, admission.getRejected());
+        } finally {
+            KeycloakAdmission.MAX_QUEUE = maxQueue;
+        }
+    }
+
+    @Test
+    public void calls_are_rejected_after_the_queue_timeout() throws Exception {
+        long queueTimeout = KeycloakAdmission.QUEUE_TIMEOUT;
+        KeycloakAdmission.QUEUE_TIMEOUT = 50;
+        try {
+            KeycloakAdmission admission = new KeycloakAdmission(1);
+            admission.acquire();
+            try {
+                admission.call(() -> "token");
+                fail("call should be rejected");
+            } catch (KeycloakAdmission.RejectedException e) {
+                // expected
+            }
+            assertEquals(0, admission.getQueued());
+            assertEquals("rejected", KeycloakMetrics.outcome(new KeycloakAdmission.RejectedException()));
+        } finally {
+            KeycloakAdmission.QUEUE_TIMEOUT = queueTimeout;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.representations.AccessToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * Role mapping on login and the expiry checks done on each request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class KeycloakAuthenticationBenchmark {
+
+    static final String RESOURCE = "ci-example-com";
+
+    @Param({ "10", "100", "500" })
+    public int roles;
+
+    private AccessToken token;
+    private KeycloakAuthentication auth;
+
+    static AccessToken accessToken(int roles) {
+        AccessToken token = new AccessToken();
+        AccessToken.Access realmAccess = new AccessToken.Access();
+        AccessToken.Access clientAccess = new AccessToken.Access();
+        List<String> claimRoles = new ArrayList<>();
+        for (int i = 0; i < roles; i++) {
+            realmAccess.addRole("realm-role-" + i);
+            clientAccess.addRole("client-role-" + i);
+            claimRoles.add("claim-role-" + i);
+        }
+        token.setRealmAccess(realmAccess);
+        token.getResourceAccess().put(RESOURCE, clientAccess);
+        token.setOtherClaims("roles", claimRoles);
+        return token;
+    }
+
+    @Setup
+    public void setup() {
+        token = accessToken(roles);
+        auth = KeycloakAuthenticationTest.authentication(300, 1800);
+    }
+
+    @Benchmark
+    public Collection<GrantedAuthority> buildRoles() {
+        return KeycloakAuthentication.buildRoles(token, RESOURCE);
+    }
+
+    @Benchmark
+    public void expiryChecks(Blackhole bh) {
+        long now = System.nanoTime();
+        bh.consume(auth.isRefreshExpired(now));
+        bh.consume(auth.isAccessExpired(now));
+        bh.consume(auth.isLastRefreshOlderThan(TimeUnit.SECONDS.toNanos(1), now));
+    }
+}
@@ -0,0 +1,163 @@
+package org.jenkinsci.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+
+import hudson.security.SecurityRealm;
+
+import static org.junit.Assert.*;
+
+public class KeycloakAuthenticationTest {
+
+    static KeycloakAuthentication authentication(long expiresIn, long refreshExpiresIn) {
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername("alice");
+        AccessTokenResponse response = new AccessTokenResponse();
+        response.setToken("access-token");
+        response.setIdToken("id-token");
+        response.setRefreshToken("refresh-token");
+        response.setExpiresIn(expiresIn);
+        response.setRefreshExpiresIn(refreshExpiresIn);
+        return new KeycloakAuthentication(idToken, new AccessToken(), "refresh-token", response, "ci-example-com");
+    }
+
+    @Test
+    public void fresh_tokens_are_not_expired() {
+        KeycloakAuthentication auth = authentication(300, 1800);
+        assertFalse(auth.isAccessExpired());
+        assertFalse(auth.isRefreshExpired());
+        assertFalse(auth.isLastRefreshOlderThan(TimeUnit.SECONDS.toNanos(1), System.nanoTime()));
+    }
+
+    @Test
+    public void deadlines_follow_last_refresh() {
+        KeycloakAuthentication auth = authentication(300, 1800);
+        auth.setLastRefresh(new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(600)));
+        long now = System.nanoTime();
+        assertTrue(auth.isAccessExpired(now));
+        assertFalse(auth.isRefreshExpired(now));
+        assertTrue(auth.isLastRefreshOlderThan(TimeUnit.SECONDS.toNanos(1), now));
+
+        auth.setLastRefresh(new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(3600)));
+        assertTrue(auth.isRefreshExpired());
+    }
+
+    @Test
+    public void equal_roles_share_one_instance() {
+        List<GrantedAuthority> alice = KeycloakAuthentication.buildRoles(
+                KeycloakAuthenticationBenchmark.accessToken(10), KeycloakAuthenticationBenchmark.RESOURCE);
+        List<GrantedAuthority> bob = KeycloakAuthentication.buildRoles(
+                KeycloakAuthenticationBenchmark.accessToken(10), KeycloakAuthenticationBenchmark.RESOURCE);
+        assertSame(alice, bob);
+
+        List<GrantedAuthority> carol = KeycloakAuthentication.buildRoles(
+                KeycloakAuthenticationBenchmark.accessToken(5), KeycloakAuthenticationBenchmark.RESOURCE);
+        assertNotSame(alice, carol);
+        assertSame(alice.get(alice.indexOf(carol.get(0))), carol.get(0));
+        assertTrue(alice.contains(SecurityRealm.AUTHENTICATED_AUTHORITY2));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void roles_are_immutable() {
+        KeycloakAuthentication.buildRoles(KeycloakAuthenticationBenchmark.accessToken(1),
+                KeycloakAuthenticationBenchmark.RESOURCE).clear();
+    }
+
+    @Test
+    public void id_token_is_not_kept_in_the_session() {
+        KeycloakAuthentication auth = authentication(300, 1800);
+        AccessTokenResponse response = auth.getAccessTokenResponse();
+        assertEquals("access-token", response.getToken());
+        assertNull(response.getIdToken());
+        assertEquals("refresh-token", response.getRefreshToken());
+        assertEquals(300, response.getExpiresIn());
+        assertEquals(1800, response.getRefreshExpiresIn());
+        assertEquals("access-token", auth.getAccessToken());
+        assertEquals("refresh-token", auth.getRefreshToken());
+        assertTrue(auth.hasDeadlines());
+    }
+
+    @Test
+    public void concurrent_refreshes_share_one_call() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            KeycloakDeployment deployment = ksr.getKeycloakDeployment();
+            // long enough for all callers to find the refresh in flight
+            keycloak.setDelay(500);
+
+            KeycloakAuthentication auth = authentication(300, 1800);
+            String seen = auth.getRefreshToken();
+            int callers = 8;
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(callers);
+            try {
+                List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < callers; i++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        assertTrue(auth.refresh(deployment, seen, 10000, false));
+                        return auth.getRefreshToken();
+                    }));
+                }
+                start.countDown();
+                for (Future<String> result : results) {
+                    assertEquals("refresh-token-1", result.get(10, TimeUnit.SECONDS));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            assertEquals(1, keycloak.getTokenRequests());
+        }
+    }
+
+    @Test
+    public void sessions_of_the_previous_version_are_restored() throws Exception {
+        KeycloakAuthentication auth = authentication(300, 1800);
+        List<GrantedAuthority> roles = KeycloakAuthentication.buildRoles(
+                KeycloakAuthenticationBenchmark.accessToken(3), KeycloakAuthenticationBenchmark.RESOURCE);
+        // 2.3.x kept the authorities in the super class and the last refresh as a calendar
+        field(KeycloakAuthentication.class, "authorities").set(auth, null);
+        field(AbstractAuthenticationToken.class, "authorities").set(auth, new ArrayList<>(roles));
+        Calendar lastRefresh = Calendar.getInstance();
+        lastRefresh.setTimeInMillis(1000);
+        field(KeycloakAuthentication.class, "lastRefresh").set(auth, lastRefresh);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(auth);
+        }
+        KeycloakAuthentication restored;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            restored = (KeycloakAuthentication) in.readObject();
+        }
+        assertSame(roles, restored.getAuthorities());
+        assertEquals(new Date(1000), restored.getLastRefresh());
+        assertEquals("alice", restored.getName());
+    }
+
+    private static Field field(Class<?> type, String name) throws Exception {
+        Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+}
@@ -0,0 +1,58 @@
+package org.jenkinsci.plugins;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeycloakAvatarCacheTest {
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY), "png", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void pictures_are_only_fetched_from_keycloak() {
+        Set<String> keycloak = Set.of("sso.example.com");
+        assertTrue(KeycloakAvatarCache.isAllowed("https://sso.example.com/avatars/alice.png", keycloak));
+        assertTrue(KeycloakAvatarCache.isAllowed("http://SSO.example.com/alice.png", keycloak));
+        assertFalse(KeycloakAvatarCache.isAllowed("https://images.example.com/alice.png", keycloak));
+        assertFalse(KeycloakAvatarCache.isAllowed("http://169.254.169.254/latest/meta-data/", keycloak));
+        assertFalse(KeycloakAvatarCache.isAllowed("file:///etc/passwd", keycloak));
+        assertFalse(KeycloakAvatarCache.isAllowed("ftp://sso.example.com/alice.png", keycloak));
+        assertFalse(KeycloakAvatarCache.isAllowed("not a url", keycloak));
+    }
+
+    @Test
+    public void small_images_are_decoded() throws IOException {
+        BufferedImage image = KeycloakAvatarCache.decode("alice.png", png(64, 48));
+        assertEquals(64, image.getWidth());
+        assertEquals(48, image.getHeight());
+    }
+
+    @Test
+    public void huge_images_are_not_decoded() throws IOException {
+        // a few kilobytes to download, but 25 million pixels once decoded
+        byte[] bytes = png(5000, 5000);
+        assertTrue(bytes.length < 1024 * 1024);
+        try {
+            KeycloakAvatarCache.decode("bomb.png", bytes);
+            fail("image should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("pixels"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void other_content_is_rejected() throws IOException {
+        KeycloakAvatarCache.decode("alice.png", "<html></html>".getBytes());
+    }
+}
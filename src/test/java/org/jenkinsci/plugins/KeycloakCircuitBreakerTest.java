@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+import static org.junit.Assert.*;
+
+public class KeycloakCircuitBreakerTest {
+
+    private static void failCall(KeycloakCircuitBreaker breaker, Exception failure) {
+        try {
+            breaker.call(() -> {
+                if (failure instanceof HttpFailure) {
+                    throw (HttpFailure) failure;
+                }
+                throw (IOException) failure;
+            });
+        } catch (IOException | HttpFailure e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void opens_after_consecutive_unavailability() throws Exception {
+        KeycloakCircuitBreaker breaker = new KeycloakCircuitBreaker();
+        for (int i = 0; i < KeycloakCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertFalse(breaker.isOpen());
+            failCall(breaker, new HttpFailure(503, null));
+        }
+        assertTrue(breaker.isOpen());
+        try {
+            breaker.call(() -> "token");
+            fail("call should be rejected");
+        } catch (KeycloakCircuitBreaker.OpenException e) {
+            assertTrue(KeycloakCircuitBreaker.isUnavailable(e));
+        }
+    }
+
+    @Test
+    public void rejected_grants_do_not_open() throws Exception {
+        KeycloakCircuitBreaker breaker = new KeycloakCircuitBreaker();
+        for (int i = 0; i < KeycloakCircuitBreaker.FAILURE_THRESHOLD * 2; i++) {
+            failCall(breaker, new HttpFailure(400, "invalid_grant"));
+        }
+        assertFalse(breaker.isOpen());
+        assertFalse(KeycloakCircuitBreaker.isUnavailable(new HttpFailure(400, "invalid_grant")));
+    }
+
+    @Test
+    public void trial_call_closes_again() throws Exception {
+        long openMillis = KeycloakCircuitBreaker.OPEN_MILLIS;
+        KeycloakCircuitBreaker.OPEN_MILLIS = 10;
+        try {
+            KeycloakCircuitBreaker breaker = new KeycloakCircuitBreaker();
+            for (int i = 0; i < KeycloakCircuitBreaker.FAILURE_THRESHOLD; i++) {
+                failCall(breaker, new SocketTimeoutException());
+            }
+            assertTrue(breaker.isOpen());
+            Thread.sleep(50);
+            assertEquals("token", breaker.call(() -> "token"));
+            assertFalse(breaker.isOpen());
+        } finally {
+            KeycloakCircuitBreaker.OPEN_MILLIS = openMillis;
+        }
+    }
+
+    @Test
+    public void error_in_trial_call_opens_again() throws Exception {
+        long openMillis = KeycloakCircuitBreaker.OPEN_MILLIS;
+        KeycloakCircuitBreaker.OPEN_MILLIS = 10;
+        try {
+            KeycloakCircuitBreaker breaker = new KeycloakCircuitBreaker();
+            for (int i = 0; i < KeycloakCircuitBreaker.FAILURE_THRESHOLD; i++) {
+                failCall(breaker, new SocketTimeoutException());
+            }
+            Thread.sleep(50);
+            try {
+                breaker.call(() -> {
+                    throw new LinkageError("trial call failed");
+                });
+                fail("error should be thrown");
+            } catch (LinkageError e) {
+                // expected
+            }
+            assertTrue(breaker.isOpen());
+            Thread.sleep(50);
+            assertEquals("token", breaker.call(() -> "token"));
+            assertFalse(breaker.isOpen());
+        } finally {
+            KeycloakCircuitBreaker.OPEN_MILLIS = openMillis;
+        }
+    }
+
+    @Test
+    public void each_server_has_its_own_circuit() throws Exception {
+        KeycloakCircuitBreaker first = KeycloakCircuitBreaker.get("https://sso-1.example.com/auth");
+        assertSame(first, KeycloakCircuitBreaker.get("https://sso-1.example.com/auth"));
+        KeycloakCircuitBreaker second = KeycloakCircuitBreaker.get("https://sso-2.example.com/auth");
+        assertNotSame(first, second);
+        for (int i = 0; i < KeycloakCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            failCall(first, new HttpFailure(503, null));
+        }
+        assertTrue(first.isOpen());
+        assertFalse(second.isOpen());
+        assertEquals("token", second.call(() -> "token"));
+    }
+}
@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.ServerRequest;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+
+import static org.junit.Assert.*;
+
+public class KeycloakHttpClientTest {
+
+    @Test
+    public void calls_to_keycloak_use_the_managed_pool() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            KeycloakHttpClientConfig config = new KeycloakHttpClientConfig();
+            config.setConnectionPoolSize(4);
+            ksr.setHttpClient(config);
+
+            KeycloakDeployment deployment = ksr.getKeycloakDeployment();
+            assertTrue(deployment.getClient() instanceof CloseableHttpClient);
+            assertEquals(4, poolSize(ksr));
+
+            long requests = KeycloakMetrics.get().getHttpRequest().getCount();
+            long leases = KeycloakMetrics.get().getPoolLease().getCount();
+            AccessTokenResponse response = ServerRequest.invokeRefresh(deployment, "refresh-token");
+            assertEquals("access-token", response.getToken());
+            assertTrue(KeycloakMetrics.get().getHttpRequest().getCount() > requests);
+            assertTrue(KeycloakMetrics.get().getPoolLease().getCount() > leases);
+        }
+    }
+
+    @Test
+    public void slow_keycloak_is_given_up_after_the_socket_timeout() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            KeycloakHttpClientConfig config = new KeycloakHttpClientConfig();
+            config.setSocketTimeout(200);
+            ksr.setHttpClient(config);
+            KeycloakDeployment deployment = ksr.getKeycloakDeployment();
+
+            keycloak.setDelay(5000);
+            long start = System.nanoTime();
+            try {
+                ServerRequest.invokeAccessCodeToToken(deployment, "code", "http://localhost/finishLogin", null);
+                fail("the code exchange should time out");
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 3000);
+        }
+    }
+
+    @Test
+    public void settings_replace_a_built_deployment() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            KeycloakDeployment deployment = ksr.getKeycloakDeployment();
+            assertEquals(KeycloakHttpClientConfig.DEFAULT_CONNECTION_POOL_SIZE, poolSize(ksr));
+
+            KeycloakHttpClientConfig config = new KeycloakHttpClientConfig();
+            config.setConnectionPoolSize(8);
+            ksr.setHttpClient(config);
+            assertNotSame(deployment, ksr.getKeycloakDeployment());
+            assertEquals(8, poolSize(ksr));
+        }
+    }
+
+    @Test
+    public void replaced_deployments_are_closed_once_the_new_realm_is_installed() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            KeycloakHttpClient previous = ksr.getTenantDeployment(null).getHttpClient();
+
+            // a realm bound from the configuration form does not touch the installed one
+            KeycloakSecurityRealm saved = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            KeycloakHttpClientConfig config = new KeycloakHttpClientConfig();
+            config.setConnectionPoolSize(8);
+            saved.setHttpClient(config);
+            KeycloakHttpClient next = saved.getTenantDeployment(null).getHttpClient();
+            assertFalse(previous.isRetired());
+
+            KeycloakSecurityRealm.DeploymentRetirement.retire(saved);
+            assertTrue(previous.isRetired());
+            assertFalse(next.isRetired());
+
+            // e.g. another security realm was configured
+            KeycloakSecurityRealm.DeploymentRetirement.retire(null);
+            assertTrue(next.isRetired());
+            assertFalse(saved.getTenantDeployment(null).getHttpClient().isRetired());
+        }
+    }
+
+    @Test
+    public void deployments_are_keyed_without_the_secret() throws Exception {
+        String json = "{\"realm\": \"master\",\"auth-server-url\": \"https://keycloak.example.com/auth/\","
+                + "\"resource\": \"ci-example-com\",\"credentials\": {\"secret\": \"s3cr3t-value\"}}";
+        KeycloakHttpClientConfig config = new KeycloakHttpClientConfig();
+        String key = TenantDeployment.configKey(JsonSerialization.readValue(json, AdapterConfig.class), config);
+        assertFalse(key.contains("s3cr3t-value"));
+        assertEquals(64, key.length());
+        assertNotEquals(key, TenantDeployment.configKey(
+                JsonSerialization.readValue(json.replace("s3cr3t-value", "other"), AdapterConfig.class), config));
+        assertEquals(key, TenantDeployment.configKey(
+                JsonSerialization.readValue(json.replace(",", ",\n  "), AdapterConfig.class), config));
+    }
+
+    @Test
+    public void unchanged_json_keeps_the_deployment() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            KeycloakDeployment deployment = ksr.getKeycloakDeployment();
+
+            // a new realm is saved from the configuration form, the JSON only differs in formatting
+            KeycloakSecurityRealm saved = new KeycloakSecurityRealm("", keycloak.keycloakJson().replace(",", ",\n  "),
+                    true, true);
+            assertSame(deployment, saved.getKeycloakDeployment());
+        }
+    }
+
+    @Test
+    public void pool_stats_cover_all_deployments() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            ksr.getKeycloakDeployment();
+            assertTrue(KeycloakMetrics.get().getPoolStats().getMax() >= poolSize(ksr));
+        }
+    }
+
+    private static int poolSize(KeycloakSecurityRealm ksr) throws Exception {
+        return ksr.getTenantDeployment(null).getHttpClient().getPoolStats().getMax();
+    }
+}
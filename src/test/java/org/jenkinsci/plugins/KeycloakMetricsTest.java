@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.Timer;
+
+import static org.junit.Assert.*;
+
+public class KeycloakMetricsTest {
+
+    @Test
+    public void outcomes_are_grouped_by_status() {
+        assertEquals("success", KeycloakMetrics.outcome(null));
+        assertEquals("400", KeycloakMetrics.outcome(new HttpFailure(400, "invalid_grant")));
+        assertEquals("4xx", KeycloakMetrics.outcome(new HttpFailure(404, null)));
+        assertEquals("5xx", KeycloakMetrics.outcome(new HttpFailure(503, null)));
+        assertEquals("error", KeycloakMetrics.outcome(new java.net.SocketTimeoutException()));
+    }
+
+    @Test
+    public void provider_keeps_a_timer_per_outcome() {
+        KeycloakMetricProvider provider = new KeycloakMetricProvider();
+        try {
+            Map<String, Metric> metrics = provider.getMetricSet().getMetrics();
+            Timer failures = (Timer) metrics.get("keycloak.refresh.5xx");
+            Timer successes = (Timer) metrics.get("keycloak.refresh.success");
+            long before = KeycloakMetrics.get().getOperations().get(KeycloakMetrics.Operation.REFRESH).getCount("5xx");
+            KeycloakMetrics.get().record(KeycloakMetrics.Operation.REFRESH, System.nanoTime(), new HttpFailure(503, null));
+            assertEquals(1, failures.getCount());
+            assertEquals(0, successes.getCount());
+            assertEquals(before + 1, KeycloakMetrics.get().getOperations().get(KeycloakMetrics.Operation.REFRESH).getCount("5xx"));
+            assertTrue(metrics.get("keycloak.http.request") instanceof Timer);
+        } finally {
+            KeycloakMetrics.setListener(null);
+        }
+    }
+
+    @Test
+    public void operations_count_failures() {
+        KeycloakMetrics.OperationMetrics operation = new KeycloakMetrics.OperationMetrics("keycloak.test");
+        operation.record(1000, "success");
+        operation.record(1000, "5xx");
+        assertEquals(1, operation.getCount("5xx"));
+        assertEquals(1, operation.getFailures());
+    }
+}
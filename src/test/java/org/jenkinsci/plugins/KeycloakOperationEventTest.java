@@ -0,0 +1,25 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeycloakOperationEventTest {
+
+    @Test
+    public void status_is_taken_from_the_keycloak_answer() {
+        assertEquals(200, KeycloakOperationEvent.status(null));
+        assertEquals(400, KeycloakOperationEvent.status(new HttpFailure(400, "invalid_grant")));
+        assertEquals(503, KeycloakOperationEvent.status(new IOException(new HttpFailure(503, "unavailable"))));
+        assertEquals(0, KeycloakOperationEvent.status(new IOException("connection refused")));
+    }
+
+    @Test
+    public void ending_an_unrecorded_event_does_not_fail() {
+        KeycloakOperationEvent event = KeycloakOperationEvent.start();
+        event.end("refresh", "user", null, new KeycloakAdmission.RejectedException());
+    }
+}
@@ -5,9 +5,17 @@ import io.jenkins.plugins.casc.ConfiguratorRegistry;
 import io.jenkins.plugins.casc.misc.ConfiguredWithCode;
 import io.jenkins.plugins.casc.misc.JenkinsConfiguredWithCodeRule;
 import io.jenkins.plugins.casc.model.CNode;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import hudson.model.User;
+import hudson.tasks.Mailer;
 import jenkins.model.Jenkins;
 import org.junit.Rule;
 import org.junit.Test;
+import org.keycloak.representations.IDToken;
+import org.springframework.security.core.context.SecurityContextHolder;
 
 import static io.jenkins.plugins.casc.misc.Util.getJenkinsRoot;
 import static io.jenkins.plugins.casc.misc.Util.toStringFromYamlFile;
@@ -51,4 +59,63 @@ public class KeycloakSecurityRealmTest {
 
         assertEquals(expected, exported);
     }
+
+    @Test
+    public void login_saves_the_user_only_if_changed() throws Exception {
+        User user = User.getById("alice", true);
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername("Alice");
+        idToken.setEmail("alice@example.com");
+        idToken.setPicture("https://keycloak.example.com/alice.png");
+
+        assertTrue(KeycloakSecurityRealm.updateUser(user, idToken));
+        assertEquals("Alice", user.getFullName());
+        assertEquals("alice@example.com", user.getProperty(Mailer.UserProperty.class).getAddress());
+        assertEquals("https://keycloak.example.com/alice.png", user.getProperty(KeycloakAvatarProperty.class).getAvatarUrl());
+
+        assertFalse(KeycloakSecurityRealm.updateUser(user, idToken));
+
+        idToken.setPicture("https://keycloak.example.com/alice-2.png");
+        assertTrue(KeycloakSecurityRealm.updateUser(user, idToken));
+        assertEquals("https://keycloak.example.com/alice-2.png", user.getProperty(KeycloakAvatarProperty.class).getAvatarUrl());
+    }
+
+    @Test
+    public void local_validation_calls_keycloak_only_after_expiry() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm refreshing = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, false);
+            KeycloakSecurityRealm local = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, false);
+            local.setKeycloakValidateTokenLocally(true);
+            assertFalse(refreshing.respectAccessTokenTimeout());
+            assertTrue(local.respectAccessTokenTimeout());
+            assertTrue(local.validateTokenLocally());
+
+            KeycloakAuthentication auth = KeycloakAuthenticationTest.authentication(300, 1800);
+            auth.setLastRefresh(new Date(System.currentTimeMillis() - 2000));
+            SecurityContextHolder.getContext().setAuthentication(auth);
+            List<String> redirects = new ArrayList<>();
+            RefreshFilter filter = new RefreshFilter();
+
+            // the access token is valid, keycloak is not asked
+            filter.doFilter(local, StubKeycloak.request("/job/example/", StubKeycloak.keycloakSession()),
+                    StubKeycloak.response(redirects), StubKeycloak.chain());
+            assertEquals(0, keycloak.getTokenRequests());
+
+            // without local validation the same request refreshes the token
+            filter.doFilter(refreshing, StubKeycloak.request("/job/example/", StubKeycloak.keycloakSession()),
+                    StubKeycloak.response(redirects), StubKeycloak.chain());
+            assertEquals(1, keycloak.getTokenRequests());
+            assertTrue(redirects.isEmpty());
+
+            // once expired the refreshed token is verified, the stub answers with an unsigned one
+            auth.setLastRefresh(new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(600)));
+            filter.doFilter(local, StubKeycloak.request("/job/example/", StubKeycloak.keycloakSession()),
+                    StubKeycloak.response(redirects), StubKeycloak.chain());
+            assertEquals(2, keycloak.getTokenRequests());
+            assertEquals(1, redirects.size());
+            assertTrue(redirects.get(0), redirects.get(0).endsWith("logout"));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
 }
\ No newline at end of file
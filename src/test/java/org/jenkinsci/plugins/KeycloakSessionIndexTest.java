@@ -0,0 +1,76 @@
+package org.jenkinsci.plugins;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpSession;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeycloakSessionIndexTest {
+
+    @Test
+    public void sessions_are_invalidated_by_session_id_and_subject() {
+        KeycloakSessionIndex index = new KeycloakSessionIndex();
+        AtomicBoolean first = new AtomicBoolean();
+        AtomicBoolean second = new AtomicBoolean();
+        AtomicBoolean other = new AtomicBoolean();
+        HttpSession firstSession = StubKeycloak.session(first);
+        HttpSession secondSession = StubKeycloak.session(second);
+        HttpSession otherSession = StubKeycloak.session(other);
+        index.register("sid-1", "alice", firstSession);
+        index.register("sid-2", "alice", secondSession);
+        index.register("sid-3", "bob", otherSession);
+
+        assertEquals(1, index.invalidateSessionId("sid-1"));
+        assertTrue(first.get());
+        assertFalse(second.get());
+
+        // the session invalidated above is counted once only
+        assertEquals(1, index.invalidateSubject("alice"));
+        assertTrue(second.get());
+        assertFalse(other.get());
+        assertEquals(0, index.invalidateSubject("alice"));
+        Reference.reachabilityFence(firstSession);
+        Reference.reachabilityFence(secondSession);
+        Reference.reachabilityFence(otherSession);
+    }
+
+    @Test
+    public void purge_drops_ended_sessions() {
+        KeycloakSessionIndex index = new KeycloakSessionIndex();
+        AtomicBoolean ended = new AtomicBoolean();
+        AtomicBoolean active = new AtomicBoolean();
+        HttpSession endedSession = StubKeycloak.session(ended);
+        HttpSession activeSession = StubKeycloak.session(active);
+        index.register("sid-1", "alice", endedSession);
+        index.register("sid-2", "bob", activeSession);
+        assertEquals(4, index.size());
+
+        // timed out in the servlet container
+        endedSession.invalidate();
+        index.purge();
+        assertEquals(2, index.size());
+        assertEquals(1, index.invalidateSessionId("sid-2"));
+        Reference.reachabilityFence(activeSession);
+    }
+
+    @Test
+    public void dropped_sessions_are_not_kept_alive() throws Exception {
+        KeycloakSessionIndex index = new KeycloakSessionIndex();
+        HttpSession session = StubKeycloak.session(new AtomicBoolean());
+        index.register("sid-1", "alice", session);
+        WeakReference<HttpSession> ref = new WeakReference<>(session);
+        session = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("the index must not keep the session alive", ref.get());
+        index.purge();
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class KeycloakSessionStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void sessions_survive_a_restart() throws Exception {
+        Path file = tmp.getRoot().toPath().resolve("keycloak-sessions.log");
+        SecretKey key = key();
+        KeycloakAuthentication auth = KeycloakAuthenticationTest.authentication(300, 1800);
+        auth.setTenant("team-a");
+        KeycloakSessionStore store = new KeycloakSessionStore(file, key);
+        String cookie = store.add(auth, "sid", "alice-id");
+        store.flush();
+
+        KeycloakSessionStore restarted = new KeycloakSessionStore(file, key);
+        KeycloakAuthentication restored = restarted.restore(cookie);
+        assertEquals("alice", restored.getName());
+        assertEquals("team-a", restored.getTenant());
+        assertEquals("refresh-token", restored.getRefreshToken());
+        assertEquals(auth.getAuthorities(), restored.getAuthorities());
+        assertTrue(restored.isAccessExpired());
+        assertFalse(restored.isRefreshExpired());
+        assertSame(restored, restarted.restore(cookie));
+        assertNull(restarted.restore("unknown"));
+    }
+
+    @Test
+    public void tokens_are_stored_encrypted() throws Exception {
+        Path file = tmp.getRoot().toPath().resolve("keycloak-sessions.log");
+        KeycloakSessionStore store = new KeycloakSessionStore(file, key());
+        store.add(KeycloakAuthenticationTest.authentication(300, 1800), null, null);
+        store.flush();
+        String content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertFalse(content.contains("refresh-token"));
+        assertFalse(content.contains("alice"));
+
+        // a store with another key does not restore anything
+        assertEquals(0, new KeycloakSessionStore(file, key()).size());
+    }
+
+    @Test
+    public void removed_and_expired_sessions_are_not_restored() throws Exception {
+        Path file = tmp.getRoot().toPath().resolve("keycloak-sessions.log");
+        SecretKey key = key();
+        KeycloakSessionStore store = new KeycloakSessionStore(file, key);
+        String loggedOut = store.add(KeycloakAuthenticationTest.authentication(300, 1800), "sid-1", "alice-id");
+        String backchannel = store.add(KeycloakAuthenticationTest.authentication(300, 1800), "sid-2", "alice-id");
+        String expired = store.add(KeycloakAuthenticationTest.authentication(300, -1), null, null);
+        store.flush();
+        store.removeCookie(loggedOut);
+        assertEquals(1, store.removeSessionId("sid-2"));
+
+        KeycloakSessionStore restarted = new KeycloakSessionStore(file, key);
+        assertNull(restarted.restore(loggedOut));
+        assertNull(restarted.restore(backchannel));
+        assertNull(restarted.restore(expired));
+        assertEquals(0, restarted.size());
+    }
+
+    @Test
+    public void refreshes_are_compacted() throws Exception {
+        Path file = tmp.getRoot().toPath().resolve("keycloak-sessions.log");
+        SecretKey key = key();
+        KeycloakSessionStore store = new KeycloakSessionStore(file, key);
+        KeycloakAuthentication auth = KeycloakAuthenticationTest.authentication(300, 1800);
+        String cookie = store.add(auth, null, null);
+        store.flush();
+        long initial = Files.size(file);
+        for (int i = 0; i < 1000; i++) {
+            auth.setRefreshToken("refresh-token-" + i);
+            store.update(auth);
+            store.flush();
+        }
+        assertTrue(Files.size(file) < 200 * initial);
+
+        KeycloakAuthentication restored = new KeycloakSessionStore(file, key).restore(cookie);
+        assertEquals("refresh-token-999", restored.getRefreshToken());
+    }
+
+    @Test
+    public void refreshes_before_a_write_are_coalesced() throws Exception {
+        Path file = tmp.getRoot().toPath().resolve("keycloak-sessions.log");
+        SecretKey key = key();
+        KeycloakSessionStore store = new KeycloakSessionStore(file, key);
+        KeycloakAuthentication auth = KeycloakAuthenticationTest.authentication(300, 1800);
+        // records of the same size
+        auth.setRefreshToken("refresh-token-00");
+        String cookie = store.add(auth, null, null);
+        store.flush();
+        long initial = Files.size(file);
+        for (int i = 10; i < 100; i++) {
+            auth.setRefreshToken("refresh-token-" + i);
+            store.update(auth);
+        }
+        // nothing is written on the refreshing thread
+        assertEquals(initial, Files.size(file));
+        store.flush();
+        assertEquals(2 * initial, Files.size(file));
+
+        KeycloakAuthentication restored = new KeycloakSessionStore(file, key).restore(cookie);
+        assertEquals("refresh-token-99", restored.getRefreshToken());
+    }
+
+    private static SecretKey key() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+}
@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+
+import static org.junit.Assert.*;
+
+public class KeycloakTenantTest {
+
+    @Test
+    public void host_patterns_match_hosts_and_domains() {
+        KeycloakTenant exact = new KeycloakTenant("a", "ci.team-a.example.com", "{}");
+        assertTrue(exact.matches("CI.team-a.example.com"));
+        assertFalse(exact.matches("ci.team-b.example.com"));
+
+        KeycloakTenant domain = new KeycloakTenant("b", "*.team-b.example.com", "{}");
+        assertTrue(domain.matches("ci.team-b.example.com"));
+        assertFalse(domain.matches("team-b.example.com"));
+        assertFalse(domain.matches(null));
+    }
+
+    @Test
+    public void each_tenant_gets_its_own_deployment_built_once() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            String tenantJson = keycloak.keycloakJson().replace("\"ci-example-com\"", "\"team-a\"");
+            ksr.setTenants(List.of(new KeycloakTenant("team-a", "*.team-a.example.com", tenantJson)));
+
+            assertEquals("team-a", ksr.resolveTenant(StubKeycloak.requestTo("ci.team-a.example.com")));
+            assertNull(ksr.resolveTenant(StubKeycloak.requestTo("ci.example.com")));
+
+            KeycloakDeployment tenant = ksr.getKeycloakDeployment("team-a");
+            assertEquals("team-a", tenant.getResourceName());
+            assertEquals("ci-example-com", ksr.getKeycloakDeployment().getResourceName());
+            assertSame(tenant, ksr.getKeycloakDeployment("team-a"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void removed_tenants_have_no_deployment() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            ksr.getKeycloakDeployment("team-a");
+        }
+    }
+}
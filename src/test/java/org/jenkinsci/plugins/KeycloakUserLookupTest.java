@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.KeycloakDeploymentBuilder;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.junit.Assert.*;
+
+public class KeycloakUserLookupTest {
+
+    private static final String ADMIN = "/auth/admin/realms/master";
+
+    private HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger adminCalls = new AtomicInteger();
+    private final AtomicInteger tokenCalls = new AtomicInteger();
+    private final AtomicInteger clientCalls = new AtomicInteger();
+    private volatile long tokenDelay;
+    private KeycloakDeployment deployment;
+
+    @Before
+    public void startKeycloak() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/auth/realms/master/protocol/openid-connect/token", exchange -> {
+            tokenCalls.incrementAndGet();
+            sleep(tokenDelay);
+            respond(exchange, 200, "{\"access_token\":\"service-token\",\"expires_in\":300,\"token_type\":\"Bearer\"}");
+        });
+        server.createContext(ADMIN, exchange -> {
+            adminCalls.incrementAndGet();
+            if (!"Bearer service-token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, "");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath().substring(ADMIN.length());
+            String query = exchange.getRequestURI().getQuery();
+            if (path.equals("/users") && query.contains("username=alice")) {
+                respond(exchange, 200, "[{\"id\":\"alice-id\",\"username\":\"alice\"}]");
+            } else if (path.equals("/users")) {
+                respond(exchange, 200, "[]");
+            } else if (path.equals("/clients")) {
+                clientCalls.incrementAndGet();
+                respond(exchange, 200, "[{\"id\":\"client-id\",\"clientId\":\"ci-example-com\"}]");
+            } else if (path.equals("/users/alice-id/role-mappings/realm/composite")) {
+                respond(exchange, 200, "[{\"name\":\"developer\"}]");
+            } else if (path.equals("/users/alice-id/role-mappings/clients/client-id/composite")) {
+                respond(exchange, 200, "[{\"name\":\"jenkins-admin\"}]");
+            } else if (path.equals("/roles/developer")) {
+                respond(exchange, 200, "{\"name\":\"developer\"}");
+            } else {
+                respond(exchange, 404, "");
+            }
+        });
+        // concurrent lookups are answered concurrently
+        server.setExecutor(executor);
+        server.start();
+        String json = "{\"realm\": \"master\",\"auth-server-url\": \"http://127.0.0.1:" + server.getAddress().getPort()
+                + "/auth/\",\"ssl-required\": \"none\",\"resource\": \"ci-example-com\",\"credentials\": {\"secret\": \"secret\"},\"confidential-port\": 0}";
+        deployment = KeycloakDeploymentBuilder.build(JsonSerialization.readValue(json, AdapterConfig.class));
+    }
+
+    @After
+    public void stopKeycloak() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void user_gets_its_realm_and_client_roles() throws Exception {
+        KeycloakUserLookup lookup = new KeycloakUserLookup();
+        KeycloakUserDetails user = lookup.loadUser(deployment, "alice").get();
+        assertEquals("alice", user.getUsername());
+        assertTrue(user.getAuthorities().contains(new SimpleGrantedAuthority("developer")));
+        assertTrue(user.getAuthorities().contains(new SimpleGrantedAuthority("jenkins-admin")));
+    }
+
+    @Test
+    public void users_are_cached() throws Exception {
+        KeycloakUserLookup lookup = new KeycloakUserLookup();
+        lookup.loadUser(deployment, "alice");
+        int calls = adminCalls.get();
+        lookup.loadUser(deployment, "alice");
+        assertEquals(Optional.empty(), lookup.loadUser(deployment, "mallory"));
+        int unknownCalls = adminCalls.get();
+        assertEquals(Optional.empty(), lookup.loadUser(deployment, "mallory"));
+        assertEquals(calls + 1, unknownCalls);
+        assertEquals(unknownCalls, adminCalls.get());
+    }
+
+    @Test
+    public void roles_of_the_realm_exist() throws Exception {
+        KeycloakUserLookup lookup = new KeycloakUserLookup();
+        assertTrue(lookup.roleExists(deployment, "developer"));
+        assertFalse(lookup.roleExists(deployment, "nobody"));
+    }
+
+    @Test
+    public void concurrent_lookups_share_the_token_and_client_requests() throws Exception {
+        KeycloakUserLookup lookup = new KeycloakUserLookup();
+        tokenDelay = 500;
+        ExecutorService lookups = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String role = "role-" + i;
+                results.add(lookups.submit(() -> lookup.roleExists(deployment, role)));
+            }
+            for (Future<Boolean> result : results) {
+                assertFalse(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            lookups.shutdownNow();
+        }
+        assertEquals(1, tokenCalls.get());
+        assertEquals(1, clientCalls.get());
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
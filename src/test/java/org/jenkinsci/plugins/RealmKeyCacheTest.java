@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.KeycloakDeploymentBuilder;
+import org.keycloak.common.crypto.CryptoIntegration;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+
+import static org.junit.Assert.*;
+
+public class RealmKeyCacheTest {
+
+    private static KeyPair first;
+    private static KeyPair second;
+
+    @BeforeClass
+    public static void setUpKeys() throws Exception {
+        CryptoIntegration.init(RealmKeyCacheTest.class.getClassLoader());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        first = generator.generateKeyPair();
+        second = generator.generateKeyPair();
+    }
+
+    @Test
+    public void requests_before_the_first_fetch_share_it() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            keycloak.setRealmKey("first", first.getPublic());
+            keycloak.setDelay(300);
+            KeycloakDeployment deployment = deployment(keycloak);
+            RealmKeyCache.install(deployment);
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<PublicKey>> keys = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    keys.add(executor.submit(() -> deployment.getPublicKeyLocator().getPublicKey("first", deployment)));
+                }
+                for (Future<PublicKey> key : keys) {
+                    assertEquals(first.getPublic(), key.get(10, TimeUnit.SECONDS));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            assertEquals(1, keycloak.getJwksRequests());
+        }
+    }
+
+    @Test
+    public void unknown_kid_fetches_the_keys() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            keycloak.setRealmKey("first", first.getPublic());
+            KeycloakDeployment deployment = deployment(keycloak);
+            RealmKeyCache.install(deployment);
+            assertEquals(first.getPublic(), deployment.getPublicKeyLocator().getPublicKey("first", deployment));
+            assertEquals(1, keycloak.getJwksRequests());
+
+            // rotated in keycloak, without a scheduled refresh in between
+            keycloak.setRealmKey("second", second.getPublic());
+            assertEquals(second.getPublic(), deployment.getPublicKeyLocator().getPublicKey("second", deployment));
+            assertEquals(2, keycloak.getJwksRequests());
+        }
+    }
+
+    @Test
+    public void unknown_kid_waits_a_bounded_time() throws Exception {
+        long unknownKeyWait = RealmKeyCache.UNKNOWN_KEY_WAIT;
+        RealmKeyCache.UNKNOWN_KEY_WAIT = 200;
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            keycloak.setRealmKey("first", first.getPublic());
+            KeycloakDeployment deployment = deployment(keycloak);
+            RealmKeyCache.install(deployment);
+            assertNotNull(deployment.getPublicKeyLocator().getPublicKey("first", deployment));
+
+            keycloak.setDelay(3000);
+            long start = System.nanoTime();
+            assertNull(deployment.getPublicKeyLocator().getPublicKey("unknown", deployment));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(2000));
+        } finally {
+            RealmKeyCache.UNKNOWN_KEY_WAIT = unknownKeyWait;
+        }
+    }
+
+    @Test
+    public void scheduled_refresh_runs_in_the_background() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            keycloak.setRealmKey("first", first.getPublic());
+            KeycloakDeployment deployment = deployment(keycloak);
+            RealmKeyCache.install(deployment);
+            assertNotNull(deployment.getPublicKeyLocator().getPublicKey("first", deployment));
+
+            keycloak.setRealmKey("second", second.getPublic());
+            keycloak.setDelay(500);
+            long start = System.nanoTime();
+            // what the Refresher does for each deployment
+            deployment.getPublicKeyLocator().reset(deployment);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (keycloak.getJwksRequests() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            // the stub answers 500 ms after it counted the call
+            Thread.sleep(1000);
+            keycloak.setDelay(0);
+            assertEquals(second.getPublic(), deployment.getPublicKeyLocator().getPublicKey("second", deployment));
+            assertEquals(2, keycloak.getJwksRequests());
+        }
+    }
+
+    private static KeycloakDeployment deployment(StubKeycloak keycloak) throws Exception {
+        // every rotated key is fetched right away
+        String json = keycloak.keycloakJson().replaceFirst("}$", ",\"min-time-between-jwks-requests\": 0}");
+        return KeycloakDeploymentBuilder.build(JsonSerialization.readValue(json, AdapterConfig.class));
+    }
+}
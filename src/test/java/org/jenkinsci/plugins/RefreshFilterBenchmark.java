@@ -0,0 +1,105 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Cost of {@link RefreshFilter} per request, against a stubbed keycloak token
+ * endpoint. Run with the GC profiler of the {@link BenchmarkRunner} to see the
+ * allocation rate per request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class RefreshFilterBenchmark {
+
+    private StubKeycloak keycloak;
+    private RefreshFilter filter;
+    private KeycloakSecurityRealm validatingRealm;
+    private KeycloakSecurityRealm refreshingRealm;
+    private KeycloakAuthentication auth;
+    private HttpServletRequest anonymousRequest;
+    private HttpServletRequest staticRequest;
+    private HttpServletRequest userRequest;
+    private ServletResponse response;
+    private FilterChain chain;
+
+    @Setup
+    public void setup() throws IOException {
+        keycloak = new StubKeycloak();
+        filter = new RefreshFilter();
+        validatingRealm = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+        refreshingRealm = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, false);
+        auth = KeycloakAuthenticationTest.authentication(300, 1800);
+        anonymousRequest = StubKeycloak.request("/job/example/", null);
+        staticRequest = StubKeycloak.request("/static/abcdef/images/logo.png", StubKeycloak.keycloakSession());
+        userRequest = StubKeycloak.request("/job/example/", StubKeycloak.keycloakSession());
+        response = StubKeycloak.response();
+        chain = StubKeycloak.chain();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+        keycloak.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Anonymous {
+        @Setup(Level.Iteration)
+        public void setup() {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LoggedIn {
+        @Setup(Level.Iteration)
+        public void setup(RefreshFilterBenchmark benchmark) {
+            SecurityContextHolder.getContext().setAuthentication(benchmark.auth);
+        }
+    }
+
+    @Benchmark
+    public void anonymous(Anonymous state) throws IOException, ServletException {
+        filter.doFilter(validatingRealm, anonymousRequest, response, chain);
+    }
+
+    @Benchmark
+    public void staticResource(LoggedIn state) throws IOException, ServletException {
+        filter.doFilter(validatingRealm, staticRequest, response, chain);
+    }
+
+    @Benchmark
+    public void validToken(LoggedIn state) throws IOException, ServletException {
+        filter.doFilter(validatingRealm, userRequest, response, chain);
+    }
+
+    /**
+     * Each request refreshes the token at the stubbed token endpoint, like
+     * <code>keycloakRespectAccessTokenTimeout=false</code> does once a second.
+     */
+    @Benchmark
+    public void refreshToken(LoggedIn state) throws IOException, ServletException {
+        auth.setLastRefresh(new Date(System.currentTimeMillis() - 2000));
+        filter.doFilter(refreshingRealm, userRequest, response, chain);
+    }
+}
@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import static org.junit.Assert.*;
+
+public class RefreshFilterTest {
+
+    @After
+    public void clearContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void anonymous_requests_create_no_session() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            assertNoSessionCreated(ksr, "/job/example/");
+        }
+    }
+
+    @Test
+    public void bypassed_requests_create_no_session() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            SecurityContextHolder.getContext().setAuthentication(KeycloakAuthenticationTest.authentication(300, 1800));
+            assertNoSessionCreated(ksr, "/static/abcdef/images/logo.png");
+        }
+    }
+
+    @Test
+    public void logged_in_requests_without_a_session_create_none() throws Exception {
+        try (StubKeycloak keycloak = new StubKeycloak()) {
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm("", keycloak.keycloakJson(), true, true);
+            // e.g. authenticated by a filter in front of this one
+            SecurityContextHolder.getContext().setAuthentication(KeycloakAuthenticationTest.authentication(300, 1800));
+            assertNoSessionCreated(ksr, "/job/example/");
+        }
+    }
+
+    @Test
+    public void bearer_requests_to_bypassed_paths_are_authenticated() throws Exception {
+        BearerTokenAuthenticatorTest.setUpRealm();
+        KeycloakSecurityRealm ksr = BearerTokenAuthenticatorTest.realm();
+        ksr.setKeycloakBypassPaths("*/api/json");
+        String token = BearerTokenAuthenticatorTest.sign(BearerTokenAuthenticatorTest.accessToken("alice", 300));
+        AtomicReference<Authentication> authenticated = new AtomicReference<>();
+        new RefreshFilter().doFilter(ksr, StubKeycloak.request("/job/example/api/json", null, "Bearer " + token),
+                StubKeycloak.response(),
+                (req, res) -> authenticated.set(SecurityContextHolder.getContext().getAuthentication()));
+        assertEquals("alice", authenticated.get().getName());
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+
+        AtomicInteger error = new AtomicInteger();
+        AtomicBoolean passed = new AtomicBoolean();
+        new RefreshFilter().doFilter(ksr, StubKeycloak.request("/job/example/api/json", null, "Bearer invalid"),
+                StubKeycloak.response(error), (req, res) -> passed.set(true));
+        assertEquals(401, error.get());
+        assertFalse(passed.get());
+    }
+
+    private static void assertNoSessionCreated(KeycloakSecurityRealm ksr, String path) throws Exception {
+        AtomicBoolean sessionCreated = new AtomicBoolean();
+        AtomicBoolean passed = new AtomicBoolean();
+        HttpServletRequest request = StubKeycloak.requestWithoutSession(path, sessionCreated);
+        FilterChain chain = (req, res) -> passed.set(true);
+        new RefreshFilter().doFilter(ksr, request, StubKeycloak.response(), chain);
+        assertTrue(path, passed.get());
+        assertFalse(path, sessionCreated.get());
+    }
+}
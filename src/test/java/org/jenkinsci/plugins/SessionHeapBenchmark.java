@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Heap retained by the authentications of many logged in users with the same
+ * roles, reported as the <code>retainedBytesPerSession</code> counter. Each
+ * login gets its own tokens, like logins against keycloak do, and the tokens
+ * are dropped after the authentication is built.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class SessionHeapBenchmark {
+
+    static final int SESSIONS = 2000;
+
+    @Param({ "10", "100" })
+    public int roles;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Heap {
+        public long retainedBytesPerSession;
+    }
+
+    @Benchmark
+    public Object sessions(Heap heap) {
+        long before = usedHeap();
+        KeycloakAuthentication[] sessions = new KeycloakAuthentication[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions[i] = login("user-" + i);
+        }
+        long after = usedHeap();
+        heap.retainedBytesPerSession = (after - before) / SESSIONS;
+        return sessions;
+    }
+
+    private KeycloakAuthentication login(String userName) {
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername(userName);
+        AccessTokenResponse response = new AccessTokenResponse();
+        response.setToken("access-token-of-" + userName);
+        response.setIdToken("id-token-of-" + userName);
+        response.setRefreshToken("refresh-token-of-" + userName);
+        response.setExpiresIn(300);
+        response.setRefreshExpiresIn(1800);
+        return new KeycloakAuthentication(idToken, KeycloakAuthenticationBenchmark.accessToken(roles),
+                response.getRefreshToken(), response, KeycloakAuthenticationBenchmark.RESOURCE);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
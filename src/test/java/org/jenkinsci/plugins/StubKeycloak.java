@@ -0,0 +1,279 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKBuilder;
+import org.keycloak.util.JsonSerialization;
+import org.kohsuke.stapler.StaplerRequest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for a keycloak server and the servlet objects the
+ * {@link RefreshFilter} works with, so the benchmarks run without a network
+ * and without a Jenkins instance.
+ */
+final class StubKeycloak implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger tokenRequests = new AtomicInteger();
+    private final AtomicInteger jwksRequests = new AtomicInteger();
+    private volatile long delayMillis;
+    private volatile byte[] jwks = "{\"keys\":[]}".getBytes(StandardCharsets.UTF_8);
+
+    StubKeycloak() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("/protocol/openid-connect/token")) {
+                respond(exchange, tokenResponse(tokenRequests.incrementAndGet()));
+            } else if (path.endsWith("/protocol/openid-connect/certs")) {
+                jwksRequests.incrementAndGet();
+                respond(exchange, jwks);
+            } else {
+                // every other call is answered with a token response as well
+                respond(exchange, tokenResponse(tokenRequests.get()));
+            }
+        });
+        // concurrent calls are answered concurrently, like keycloak does
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private static byte[] tokenResponse(int request) {
+        // a fresh refresh token for each call, like the token endpoint does
+        return ("{\"access_token\":\"access-token\",\"expires_in\":300,\"refresh_expires_in\":1800,"
+                + "\"refresh_token\":\"refresh-token-" + request + "\",\"token_type\":\"Bearer\"}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void respond(HttpExchange exchange, byte[] body) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @param delayMillis how long each call waits before it is answered
+     */
+    void setDelay(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * @param kid the id of the only realm key
+     * @param publicKey the realm key published at the JWKS endpoint
+     */
+    void setRealmKey(String kid, PublicKey publicKey) throws IOException {
+        JWK jwk = JWKBuilder.create().kid(kid).algorithm(Algorithm.RS256).rsa(publicKey);
+        JSONWebKeySet keys = new JSONWebKeySet();
+        keys.setKeys(new JWK[] { jwk });
+        jwks = JsonSerialization.writeValueAsBytes(keys);
+    }
+
+    /**
+     * @return the number of calls to the token endpoint, each one answered
+     *         with the refresh token <code>refresh-token-&lt;number&gt;</code>
+     */
+    int getTokenRequests() {
+        return tokenRequests.get();
+    }
+
+    /**
+     * @return the number of calls to the JWKS endpoint
+     */
+    int getJwksRequests() {
+        return jwksRequests.get();
+    }
+
+    /**
+     * @return the adapter configuration pointing to this stub
+     */
+    String keycloakJson() {
+        return "{\"realm\": \"master\",\"auth-server-url\": \"http://127.0.0.1:" + server.getAddress().getPort()
+                + "/auth/\",\"ssl-required\": \"none\",\"resource\": \"ci-example-com\",\"credentials\": {\"secret\": \"secret\"},\"confidential-port\": 0}";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static HttpSession session(Map<String, Object> attributes) {
+        return stub(HttpSession.class, (name, args) -> {
+            switch (name) {
+            case "getAttribute":
+                return attributes.get(args[0]);
+            case "setAttribute":
+                attributes.put((String) args[0], args[1]);
+                return null;
+            default:
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param invalidated set when the session is invalidated, the session then
+     *            fails like one of the servlet container does
+     */
+    static HttpSession session(AtomicBoolean invalidated) {
+        return stub(HttpSession.class, (name, args) -> {
+            switch (name) {
+            case "hashCode":
+            case "equals":
+            case "toString":
+                return null;
+            default:
+                if (invalidated.get()) {
+                    throw new IllegalStateException("Session already invalidated");
+                }
+                if ("invalidate".equals(name)) {
+                    invalidated.set(true);
+                }
+                return "getCreationTime".equals(name) ? 0L : null;
+            }
+        });
+    }
+
+    static HttpSession keycloakSession() {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(KeycloakSecurityRealm.AUTH_REQUESTED, Boolean.TRUE);
+        return session(attributes);
+    }
+
+    static HttpServletRequest request(String pathInfo, HttpSession session) {
+        return request(pathInfo, session, null);
+    }
+
+    static HttpServletRequest request(String pathInfo, HttpSession session, String authorization) {
+        return stub(HttpServletRequest.class, (name, args) -> {
+            switch (name) {
+            case "getSession":
+                return session;
+            case "getPathInfo":
+                return pathInfo;
+            case "getHeader":
+                return "Authorization".equalsIgnoreCase((String) args[0]) ? authorization : null;
+            default:
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param sessionCreated set when the request is asked to create a session
+     * @return a request without a session
+     */
+    static HttpServletRequest requestWithoutSession(String pathInfo, AtomicBoolean sessionCreated) {
+        return stub(HttpServletRequest.class, (name, args) -> {
+            switch (name) {
+            case "getSession":
+                if (args == null || Boolean.TRUE.equals(args[0])) {
+                    sessionCreated.set(true);
+                    return session(new HashMap<>());
+                }
+                return null;
+            case "getPathInfo":
+                return pathInfo;
+            default:
+                return null;
+            }
+        });
+    }
+
+    static StaplerRequest staplerRequest(Map<String, String> parameters) {
+        return stub(StaplerRequest.class, (name, args) -> "getParameter".equals(name) ? parameters.get(args[0]) : null);
+    }
+
+    static HttpServletRequest requestTo(String serverName) {
+        return stub(HttpServletRequest.class, (name, args) -> "getServerName".equals(name) ? serverName : null);
+    }
+
+    static ServletResponse response() {
+        return stub(ServletResponse.class, (name, args) -> null);
+    }
+
+    /**
+     * @param redirects collects the redirects sent with the response
+     */
+    static HttpServletResponse response(List<String> redirects) {
+        return stub(HttpServletResponse.class, (name, args) -> {
+            if ("sendRedirect".equals(name)) {
+                redirects.add((String) args[0]);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @param error set to the status of the error sent with the response
+     */
+    static HttpServletResponse response(AtomicInteger error) {
+        return stub(HttpServletResponse.class, (name, args) -> {
+            if ("sendError".equals(name)) {
+                error.set((Integer) args[0]);
+            }
+            return null;
+        });
+    }
+
+    static FilterChain chain() {
+        return (req, res) -> { };
+    }
+
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    private static <T> T stub(Class<T> type, Answer answer) {
+        return type.cast(Proxy.newProxyInstance(StubKeycloak.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    Object result = answer.answer(method.getName(), args);
+                    if (result == null && method.getReturnType() == boolean.class) {
+                        return Boolean.FALSE;
+                    }
+                    if (result == null && method.getReturnType() == int.class) {
+                        return 0;
+                    }
+                    return result;
+                }));
+    }
+}
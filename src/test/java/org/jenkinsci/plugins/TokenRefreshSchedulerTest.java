@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenRefreshSchedulerTest {
+
+    @Test
+    public void refresh_starts_the_margin_and_jitter_before_expiry() {
+        KeycloakAuthentication auth = KeycloakAuthenticationTest.authentication(300, 1800);
+        long latest = TimeUnit.SECONDS.toMillis(300 - TokenRefreshScheduler.REFRESH_MARGIN);
+        long earliest = latest - TimeUnit.SECONDS.toMillis(TokenRefreshScheduler.REFRESH_JITTER) - 1000;
+        long first = TokenRefreshScheduler.delayMillis(auth);
+        boolean jittered = false;
+        for (int i = 0; i < 100; i++) {
+            long delay = TokenRefreshScheduler.delayMillis(auth);
+            assertTrue(delay + " ms", delay <= latest && delay >= earliest);
+            jittered |= delay != first;
+        }
+        assertTrue(jittered);
+    }
+
+    @Test
+    public void short_lived_tokens_are_left_to_the_request() {
+        KeycloakAuthentication auth = KeycloakAuthenticationTest.authentication(20, 1800);
+        int scheduled = TokenRefreshScheduler.getScheduled();
+        TokenRefreshScheduler.register(auth);
+        assertEquals(scheduled, TokenRefreshScheduler.getScheduled());
+        // not marked as running, the next request may try again
+        assertTrue(auth.startBackgroundRefresh());
+    }
+
+    @Test
+    public void idle_sessions_are_no_longer_refreshed() throws Exception {
+        long idleTimeout = TokenRefreshScheduler.IDLE_TIMEOUT;
+        TokenRefreshScheduler.IDLE_TIMEOUT = 0;
+        try {
+            KeycloakAuthentication auth = KeycloakAuthenticationTest.authentication(300, 1800);
+            assertTrue(auth.startBackgroundRefresh());
+            int scheduled = TokenRefreshScheduler.getScheduled();
+            Thread.sleep(5);
+            new TokenRefreshScheduler.RefreshTask(auth).run();
+            assertEquals(scheduled, TokenRefreshScheduler.getScheduled());
+            assertTrue(auth.startBackgroundRefresh());
+        } finally {
+            TokenRefreshScheduler.IDLE_TIMEOUT = idleTimeout;
+        }
+    }
+
+    @Test
+    public void tasks_of_collected_sessions_end() throws Exception {
+        long margin = TokenRefreshScheduler.REFRESH_MARGIN;
+        long jitter = TokenRefreshScheduler.REFRESH_JITTER;
+        TokenRefreshScheduler.REFRESH_MARGIN = 0;
+        TokenRefreshScheduler.REFRESH_JITTER = 0;
+        try {
+            int scheduled = TokenRefreshScheduler.getScheduled();
+            KeycloakAuthentication auth = KeycloakAuthenticationTest.authentication(1, 1800);
+            TokenRefreshScheduler.register(auth);
+            assertEquals(scheduled + 1, TokenRefreshScheduler.getScheduled());
+
+            WeakReference<KeycloakAuthentication> ref = new WeakReference<>(auth);
+            auth = null;
+            for (int i = 0; i < 50 && ref.get() != null; i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertNull("the task must not keep the session alive", ref.get());
+
+            // the task runs once its delay is over and is not scheduled again
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (TokenRefreshScheduler.getScheduled() > scheduled && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(scheduled, TokenRefreshScheduler.getScheduled());
+        } finally {
+            TokenRefreshScheduler.REFRESH_MARGIN = margin;
+            TokenRefreshScheduler.REFRESH_JITTER = jitter;
+        }
+    }
+}